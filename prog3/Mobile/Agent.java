@@ -6,6 +6,8 @@ import java.sql.SQLOutput;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.function.Function;
 
 /**
  * Mobile.Agent is the base class of all user-define mobile agents. It carries
@@ -25,12 +27,23 @@ public class Agent implements Serializable, Runnable {
     private String[] _arguments = null;  // arguments pass to _function
     private String _classname = null;  // this agent's class name
     private byte[] _bytecode = null;  // this agent's byte code
+    private int _parallelism = 0;     // partitions per parallel call, 0 = any
+    private HopPolicy _hopPolicy = new HopPolicy(); // timeouts and fallbacks
+    private String _homeHost = null;  // the host this agent first arrived at
+    private TraceContext _trace = null; // the trace of this agent's hops
+    private long _hopId = 0;          // identifies the hop being sent
     //To receive
     protected List<String> agentList = new ArrayList<>();
     //to message to other agents
     protected String pingToNextAgent = null;
     //key to read the message
     protected String keyToKeyMessage = null;
+    // the Place this agent is currently running on, never carried along
+    private transient Place _place = null;
+    // the quota this agent exceeded, set by the local ResourceMonitor
+    private transient volatile AgentQuota _quotaExceeded = null;
+    // whether the last hop( ) sent this agent away from this Place
+    private transient boolean _departed = false;
 
 
 
@@ -76,6 +89,10 @@ public class Agent implements Serializable, Runnable {
         File file = new File(filename);
         byte[] bytecode = new byte[(int) file.length()];
 
+        // a class shipped in a jar, (e.g., Mobile.*), has no such file
+        if (!file.exists())
+            return getResourceByteCode(classname);
+
         // read this agent's bytecode from the file.
         try {
             BufferedInputStream bis = new BufferedInputStream(new FileInputStream(filename));
@@ -90,6 +107,23 @@ public class Agent implements Serializable, Runnable {
         return bytecode;
     }
 
+    /**
+     * getResourceByteCode( ) reads the byte code of a given class from the
+     * class path.
+     *
+     * @param classname the name of a class to read.
+     * @return a byte code of a given class, or null if not found.
+     */
+    private static byte[] getResourceByteCode(String classname) {
+        String resource = classname.replace('.', '/') + ".class";
+        try (InputStream in = ClassLoader.getSystemResourceAsStream(resource)) {
+            return (in == null) ? null : in.readAllBytes();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
     /**
      * getByteCode( ) reads this agent's byte code from the corresponding file.
      *
@@ -143,6 +177,9 @@ public class Agent implements Serializable, Runnable {
             if (e.getTargetException() instanceof ThreadDeath) {
                 // Ignore "Thread.stop" exception
                 //System.out.println("Ignoring Thread.stop exception");
+            } else if (e.getTargetException() instanceof QuotaExceededException) {
+                // The agent complied with its quota in checkQuota()
+                System.err.println(e.getTargetException().getMessage());
             } else {
                 // Print out the exception
                 System.err.println("Exception during method invocation: " + _function);
@@ -164,9 +201,13 @@ public class Agent implements Serializable, Runnable {
 
     /**
      * hop( ) transfers this agent to a given host, and invoks a given
-     * function of this agent as passing given arguments to it.
+     * function of this agent as passing given arguments to it. A host that
+     * cannot be reached is retried and then replaced with the fallback hosts
+     * of this agent's HopPolicy; if none accepts the agent, it returns home
+     * or, failing that, onHopFailure( ) is called and hop( ) returns.
      *
-     * @param hostname the IP name of the next host machine to migrate
+     * @param hostname the IP name of the next host machine to migrate,
+     *                 optionally followed by ":port" to use another port
      * @param function the name of a function to invoke upon a migration
      * @param args     the arguments passed to a function called upon a
      *                 migration.
@@ -177,31 +218,428 @@ public class Agent implements Serializable, Runnable {
         try {
             this._function = function;
             this._arguments = args;
-            // Serialize the agent into a byte array
-            byte[] agentBytes = serialize();
-            // Construct the RMI URL for the remote place
-            String url = "rmi://" + hostname + ":" + _port + "/place";
-            byte[] byteCode = getByteCode();
-            String className = this._classname;
-
-            // Look up the remote place object using the RMI URL
-            PlaceInterface place = (PlaceInterface) Naming.lookup(url);
-            // Invoke the transfer method of the remote place to transfer the agent
-            //System.out.println(" In the Hop before the transfer");
-            //System.out.println(className);
-            place.transfer(className, getByteCode(), agentBytes);
-
-            // Terminate the current thread (agent)
-            Thread.currentThread().stop();
+            this._departed = false;
+            // Try the destination first, then the fallback hosts in order
+            List<String> destinations = new ArrayList<>();
+            destinations.add(hostname);
+            for (String host : _hopPolicy.getFallbackHosts())
+                if (!destinations.contains(host))
+                    destinations.add(host);
+            // Span the send, and let the next Place attach its spans to it
+            long sendSpan = SpanLog.newId();
+            long sending = System.nanoTime();
+            TraceContext trace = _trace;
+            if (trace != null)
+                _trace = trace.child(sendSpan);
+            Exception failure = transfer(destinations);
+
+            if (failure != null && !(failure instanceof HopUncertainException)
+                    && _hopPolicy.getHomeFunction() != null && _homeHost != null) {
+                // Return home, telling which hop failed
+                this._function = _hopPolicy.getHomeFunction();
+                this._arguments = new String[]{hostname, function};
+                if (transfer(Arrays.asList(_homeHost)) == null)
+                    failure = null;
+            }
+            if (trace != null && _place != null)
+                _place.getSpanLog().record(trace.getTraceId(), sendSpan,
+                        trace.getParentSpanId(),
+                        (failure == null) ? "send" : "send-failed", agentId,
+                        sending, System.nanoTime());
+            _trace = trace;
+
+            if (failure == null) {
+                // Terminate the current thread (agent)
+                _departed = true;
+                Thread.currentThread().stop();
+            }
+            // Stay here and let the agent handle the failure
+            this._function = function;
+            this._arguments = args;
+            count("hop.failed");
+            onHopFailure(hostname, function, failure);
         } catch (ThreadDeath td) {
             // Ignore the Thread.stop exception
             //System.out.println("Ignoring Thread.stop exception");
+        }
+    }
+
+    /**
+     * transfer( ) serializes this agent and transfers it to the first of
+     * given hosts that accepts it, retrying each host as many times as the
+     * hop policy allows. A host is given up for the next one only if it
+     * rejected the agent or the agent provably never reached it; after a
+     * failure that may have come after the host accepted the agent, such
+     * as a timeout, only that host is retried, and it drops the agent if
+     * it has it already.
+     *
+     * @param destinations the IP names of the hosts to try in order.
+     * @return null if the agent was transferred, otherwise the last failure.
+     */
+    private Exception transfer(List<String> destinations) {
+        // Every attempt of this transfer carries the same hop id
+        this._hopId = SpanLog.newId();
+        // Read the byte code first, so that it travels with the agent
+        final byte[] byteCode = getByteCode();
+        final byte[] agentBytes = serialize();
+        final String className = this._classname;
+        if (agentBytes == null)
+            return new NotSerializableException(className);
+
+        Exception failure = null;
+        for (String destination : destinations) {
+            if (failure != null)
+                count("hop.fallbacks");
+            boolean uncertain = false;  // the agent may be running there
+            for (int attempt = 0; attempt <= _hopPolicy.getRetries(); attempt++) {
+                if (attempt > 0) {
+                    count("hop.retries");
+                    try {
+                        Thread.sleep(_hopPolicy.getBackoff(attempt - 1));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return e;
+                    }
+                }
+                try {
+                    // Invoke the transfer method of the remote place to transfer the agent
+                    boolean accepted = PlaceConnector.call(destination, _port, _hopPolicy,
+                            new PlaceConnector.Call<Boolean>() {
+                                public Boolean call(PlaceInterface place) throws Exception {
+                                    return place.transfer(className, byteCode, agentBytes);
+                                }
+                            });
+                    if (accepted) {
+                        count("hop.sent");
+                        return null;
+                    }
+                    // Rejected agents would be rejected again, so move on
+                    failure = new RemoteException(destination + " rejected " + className);
+                    uncertain = false;
+                    break;
+                } catch (Exception e) {
+                    failure = e;
+                    uncertain = !PlaceConnector.neverReached(e);
+                }
+            }
+            if (uncertain) {
+                // The agent may be running there, so do not send another
+                count("hop.uncertain");
+                return new HopUncertainException(destination, failure);
+            }
+        }
+        return failure;
+    }
+
+    /**
+     * onHopFailure( ) is called when hop( ) could not transfer this agent to
+     * any destination nor home. The agent keeps running on the current
+     * Place after hop( ) returns. Agents may override it to recover. A
+     * HopUncertainException cause means that the agent may be running at
+     * the destination as well.
+     *
+     * @param hostname the IP name of the requested destination.
+     * @param function the name of the function requested there.
+     * @param cause    the last failure.
+     */
+    protected void onHopFailure(String hostname, String function, Exception cause) {
+        // Print out the exception that occurred during the hop
+        System.err.println("Exception during hop: " + cause.getMessage());
+        cause.printStackTrace();
+    }
+
+    /**
+     * setHopPolicy( ) sets the timeouts, retries, fallback hosts and home
+     * function that hop( ) uses from now on.
+     *
+     * @param policy the hop policy to carry along.
+     */
+    public void setHopPolicy(HopPolicy policy) {
+        this._hopPolicy = policy;
+    }
+
+    /**
+     * getTrace( ) returns the trace context of this agent, or null before
+     * its first arrival at a Mobile.Place.
+     *
+     * @return this agent's trace context.
+     */
+    public TraceContext getTrace() {
+        return _trace;
+    }
+
+    /**
+     * setTrace( ) sets the trace context of this agent.
+     *
+     * @param trace the trace context to carry along.
+     */
+    void setTrace(TraceContext trace) {
+        this._trace = trace;
+    }
+
+    /**
+     * getHopId( ) returns the identifier of the hop that brought this agent,
+     * shared by all the attempts to send it, or 0 if unknown.
+     *
+     * @return the hop identifier.
+     */
+    long getHopId() {
+        return _hopId;
+    }
+
+    /**
+     * setHome( ) records the host of the Place this agent first arrived at.
+     *
+     * @param hostname the IP name of the home host.
+     */
+    void setHome(String hostname) {
+        this._homeHost = hostname;
+    }
+
+    /**
+     * count( ) increments a counter of the local Mobile.Place, if any.
+     *
+     * @param name the counter name.
+     */
+    private void count(String name) {
+        if (_place != null)
+            _place.stats().increment(name);
+    }
+
+    /**
+     * setPlace( ) tells this agent the Mobile.Place it is running on.
+     *
+     * @param place the local place.
+     */
+    void setPlace(Place place) {
+        this._place = place;
+    }
+
+    /**
+     * mailbox( ) returns the mailbox of the Mobile.Place this agent is
+     * running on.
+     *
+     * @return the local mailbox.
+     */
+    private Mailbox mailbox() {
+        if (_place == null)
+            throw new IllegalStateException("agent is not running on a Place");
+        return _place.getMailbox();
+    }
+
+    /**
+     * getPeers( ) returns the addresses of the other Places known to the
+     * Mobile.Place this agent is running on, which can be passed to hop( ).
+     *
+     * @return a list of "host:port" addresses.
+     */
+    public List<String> getPeers() {
+        if (_place == null)
+            throw new IllegalStateException("agent is not running on a Place");
+        try {
+            return _place.getPeers();
+        } catch (RemoteException e) {
+            return new ArrayList<>(); // a local call does not fail
+        }
+    }
+
+    /**
+     * getStore( ) returns the key-value store of the Mobile.Place this agent
+     * is running on, where agents leave data for later visitors.
+     *
+     * @return the local store.
+     */
+    public PlaceStore getStore() {
+        if (_place == null)
+            throw new IllegalStateException("agent is not running on a Place");
+        return _place.getStore();
+    }
+
+    /**
+     * publish( ) publishes a message to a topic of the local Mobile.Place.
+     * The message goes to the topic's subscribers if it has any, and is
+     * queued for receive( ) otherwise.
+     *
+     * @param topic   the topic to publish to.
+     * @param message the message to publish.
+     * @return true if the message was delivered or queued, false if the
+     *         topic was full.
+     */
+    public boolean publish(String topic, String message) {
+        return mailbox().publish(topic, message);
+    }
+
+    /**
+     * publish( ) forwards a message to a topic of the Mobile.Place running
+     * on a given host, so that agents there receive it without this agent
+     * hopping over.
+     *
+     * @param hostname the IP name of the host to forward to.
+     * @param topic    the topic to publish to.
+     * @param message  the message to publish.
+     * @return true if the message was delivered or queued there,
+     *         otherwise false.
+     */
+    public boolean publish(String hostname, final String topic, final String message) {
+        try {
+            return PlaceConnector.call(hostname, _port, _hopPolicy,
+                    new PlaceConnector.Call<Boolean>() {
+                        public Boolean call(PlaceInterface place) throws Exception {
+                            return place.deliver(topic, message);
+                        }
+                    });
         } catch (Exception e) {
-            // Print out any other exceptions that occurred during the hop
-            System.err.println("Exception during hop: " + e.getMessage());e.printStackTrace();
+            System.err.println("Exception during publish: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * receive( ) takes the oldest message of a topic of the local
+     * Mobile.Place, waiting for one to be published if the topic is empty.
+     *
+     * @param topic   the topic to receive from.
+     * @param timeout the maximum time to wait in milliseconds.
+     * @return the message, or null if none arrived within timeout.
+     */
+    public String receive(String topic, long timeout) {
+        try {
+            return mailbox().receive(topic, timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * subscribe( ) registers a listener called back upon every message
+     * published to a topic of the local Mobile.Place. Subscriptions are
+     * dropped when this agent hops away or terminates.
+     *
+     * @param topic    the topic to subscribe to.
+     * @param listener the listener to call back.
+     */
+    public void subscribe(String topic, MessageListener listener) {
+        mailbox().subscribe(this, topic, listener);
+    }
+
+    /**
+     * unsubscribe( ) removes a listener from a topic of the local
+     * Mobile.Place.
+     *
+     * @param topic    the topic to unsubscribe from.
+     * @param listener the listener to remove.
+     */
+    public void unsubscribe(String topic, MessageListener listener) {
+        mailbox().unsubscribe(topic, listener);
+    }
+
+    /**
+     * setQuotaExceeded( ) is called by the local Mobile.ResourceMonitor to
+     * ask this agent to comply with a quota at its next checkQuota( ).
+     *
+     * @param quota the exceeded quota, or null to clear the request.
+     */
+    void setQuotaExceeded(AgentQuota quota) {
+        this._quotaExceeded = quota;
+    }
+
+    /**
+     * checkQuota( ) complies with the quota this agent exceeded on the local
+     * Mobile.Place, if any. A long-running agent should call it periodically
+     * from its loops: it blocks a suspended agent until the Place resumes
+     * it, and throws QuotaExceededException after migrating this agent or
+     * to terminate it. A suspended agent not resumed in time, or one that
+     * could not migrate, is terminated. An agent that never calls it is
+     * stopped by force.
+     */
+    public void checkQuota() {
+        AgentQuota quota = _quotaExceeded;
+        if (quota == null || _place == null)
+            return;
+        switch (quota.getAction()) {
+            case SUSPEND:
+                try {
+                    if (_place.getMonitor().suspend(this))
+                        return;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                throw new QuotaExceededException("agent( " + agentId +
+                        ") exceeded its quota, not resumed within " +
+                        ResourceMonitor.SUSPEND_MILLIS + " ms, terminated");
+            case MIGRATE:
+                // start the current function over at the other host
+                _quotaExceeded = null;
+                hop(quota.getMigrateHost(), _function, _arguments);
+                if (_departed)
+                    throw new QuotaExceededException("agent( " + agentId +
+                            ") exceeded its quota, migrated to " +
+                            quota.getMigrateHost());
+                throw new QuotaExceededException("agent( " + agentId +
+                        ") exceeded its quota, could not migrate to " +
+                        quota.getMigrateHost() + ", terminated");
+            default:
+                throw new QuotaExceededException("agent( " + agentId +
+                        ") exceeded its quota, terminated");
         }
     }
 
+    /**
+     * setParallelism( ) limits the number of partitions that parallelMap( )
+     * and forkJoin( ) run at once, below the limit of each Mobile.Place.
+     *
+     * @param parallelism the number of partitions, or 0 for the Place limit.
+     */
+    public void setParallelism(int parallelism) {
+        this._parallelism = parallelism;
+    }
+
+    /**
+     * parallelMap( ) applies a function to every element of a given input
+     * on the worker pool of the local Mobile.Place, and returns the results
+     * in the input order. It returns after all work has finished, so this
+     * agent may hop( ) right after. The function runs sequentially when
+     * this agent is not running on a Place.
+     *
+     * @param input    the elements to map.
+     * @param function the function to apply, which must be thread-safe.
+     * @return the mapped elements.
+     */
+    public <T, R> List<R> parallelMap(List<T> input,
+                                      Function<? super T, ? extends R> function) {
+        if (_place == null) {
+            List<R> results = new ArrayList<>(input.size());
+            for (T element : input)
+                results.add(function.apply(element));
+            return results;
+        }
+        return _place.getExecutor().map(this, input, function, _parallelism);
+    }
+
+    /**
+     * forkJoin( ) runs given tasks on the worker pool of the local
+     * Mobile.Place and returns their results in the task order, after all
+     * of them have finished.
+     *
+     * @param tasks the tasks to run, which must be thread-safe.
+     * @return the task results.
+     */
+    public <R> List<R> forkJoin(List<? extends Callable<R>> tasks) {
+        return parallelMap(tasks, new Function<Callable<R>, R>() {
+            public R apply(Callable<R> task) {
+                try {
+                    return task.call();
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+    }
+
     /**
      * serialize( ) serializes this agent into a byte array.
      *
@@ -1,39 +1,156 @@
 package Mobile;
 
-import java.util.*;
+import java.lang.ref.*;
+import java.security.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Mobile.AgentLoader defines the class of an incoming agent and registers
- * it into its local class hash.
- * 
+ * it into its local class hash. Each version of an agent class, (i.e., each
+ * distinct byte code under the same name), is defined by its own child
+ * loader, so that agents of different versions run side by side. A version
+ * is reclaimed once no agent of it is alive any longer. A class found on
+ * the Place's own class path is not versioned: it is shared by all agents,
+ * whatever byte code they carry.
+ *
  * @author  Munehiro Fukuda
  * @version %I% %G%
  * @since   1.0
  */
 public class AgentLoader extends ClassLoader {
-    // a hash table to register incoming agent classes
-    private Hashtable<String,Class> classHash = new Hashtable<String,Class>();
+    // a hash table to register incoming agent classes by name and byte code
+    private ConcurrentHashMap<String,VersionRef> classHash =
+	new ConcurrentHashMap<String,VersionRef>();
+    // versions whose classes have been garbage-collected
+    private ReferenceQueue<Class> reclaimedQueue = new ReferenceQueue<Class>();
+    // the latest version registered under each class name
+    private ConcurrentHashMap<String,VersionRef> latest =
+	new ConcurrentHashMap<String,VersionRef>();
+    private AtomicLong defined = new AtomicLong();   // versions defined
+    private AtomicLong reclaimed = new AtomicLong(); // versions reclaimed
+
+    /**
+     * VersionLoader defines a single version of an agent class and
+     * delegates every other class to Mobile.AgentLoader.
+     */
+    private static class VersionLoader extends ClassLoader {
+	VersionLoader( ClassLoader parent ) {
+	    super( parent );
+	}
+
+	Class define( String name, byte[] bytecode ) {
+	    return defineClass( name, bytecode, 0, bytecode.length );
+	}
+    }
+
+    /**
+     * VersionRef refers to a version weakly, so that its class and loader
+     * can be unloaded once its agents are gone.
+     */
+    private static class VersionRef extends WeakReference<Class> {
+	final String name;
+	final String key;
+
+	VersionRef( String name, String key, Class version,
+		    ReferenceQueue<Class> queue ) {
+	    super( version, queue );
+	    this.name = name;
+	    this.key = key;
+	}
+    }
 
     /**
      * Mobile.AgentLoader defines the class of an incoming agent and registers
-     * it into its local class hash.
+     * it into its local class hash. A class found on the local disk is
+     * shared by all agents; otherwise the version matching the given byte
+     * code is returned, defining it upon its first arrival. An agent that
+     * arrives without its byte code gets the latest version of its name.
      *
      * @param name     the name of a given agent.
      * @param bytecode the byte code of a given agent.
      * @return the new class of a given agent.
      */
-    public Class loadClass(String name, byte[] bytecode ) {
+    public Class loadClass(String name, final byte[] bytecode ) {
 	Class newClass = findLoadedClass( name );// try to find it from memory
 	if ( newClass == null )
 	    try {
 		newClass = super.loadClass( name ); // try to find it from disk
 	    } catch ( ClassNotFoundException e ) { }
-	if ( newClass == null ) 
-	    newClass = classHash.get( name );    // try to find it from my hash
-	if ( newClass == null ) {      // define a new class from byte code
-	    newClass = defineClass( name, bytecode, 0, bytecode.length );
-	    classHash.put( name, newClass );
+	if ( newClass != null )
+	    return newClass;
+
+	expunge( );
+	if ( bytecode == null ) {
+	    VersionRef ref = latest.get( name );
+	    return ( ref == null ) ? null : ref.get( );
+	}
+	final String key = name + "@" + digest( bytecode );
+	final Class[] version = new Class[1];
+	classHash.compute( key, ( k, ref ) -> {
+		version[0] = ( ref == null ) ? null : ref.get( ); // my hash
+		if ( version[0] != null )
+		    return ref;
+		// define a new version from byte code in its own loader
+		version[0] = new VersionLoader( this ).define( name, bytecode );
+		defined.incrementAndGet( );
+		VersionRef created =
+		    new VersionRef( name, k, version[0], reclaimedQueue );
+		latest.put( name, created );
+		return created;
+	    } );
+	return version[0];
+    }
+
+    /**
+     * versions( ) returns the number of agent class versions registered
+     * and not yet reclaimed.
+     */
+    public int versions( ) {
+	expunge( );
+	return classHash.size( );
+    }
+
+    /**
+     * getDefined( ) returns the number of versions defined so far.
+     */
+    public long getDefined( ) {
+	return defined.get( );
+    }
+
+    /**
+     * getReclaimed( ) returns the number of versions unloaded so far.
+     */
+    public long getReclaimed( ) {
+	return reclaimed.get( );
+    }
+
+    /**
+     * expunge( ) removes the versions whose classes have been unloaded.
+     */
+    private void expunge( ) {
+	Reference<? extends Class> ref;
+	while ( ( ref = reclaimedQueue.poll( ) ) != null ) {
+	    VersionRef version = ( VersionRef )ref;
+	    latest.remove( version.name, version );
+	    if ( classHash.remove( version.key, version ) )
+		reclaimed.incrementAndGet( );
+	}
+    }
+
+    /**
+     * digest( ) returns the SHA-256 hash of a byte code in hex.
+     */
+    private static String digest( byte[] bytecode ) {
+	try {
+	    byte[] hash =
+		MessageDigest.getInstance( "SHA-256" ).digest( bytecode );
+	    StringBuilder hex = new StringBuilder( hash.length * 2 );
+	    for ( byte b : hash )
+		hex.append( String.format( "%02x", b ) );
+	    return hex.toString( );
+	} catch ( NoSuchAlgorithmException e ) {
+	    throw new IllegalStateException( e ); // every JVM has SHA-256
 	}
-	return newClass;
     }
-} 
+}
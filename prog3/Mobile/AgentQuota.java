@@ -0,0 +1,85 @@
+package Mobile;
+
+/**
+ * Mobile.AgentQuota limits the CPU time, allocated bytes, and wall time that
+ * an agent may consume on a Mobile.Place during a single visit, and names
+ * the action to take once the agent exceeds any of these limits. A limit of
+ * 0 means unlimited.
+ */
+public class AgentQuota {
+    /**
+     * What a Place does with an agent that exceeded its quota.
+     */
+    public enum Action { SUSPEND, MIGRATE, TERMINATE }
+
+    private final long cpuNanos;        // CPU time limit
+    private final long allocatedBytes;  // heap allocation limit
+    private final long wallMillis;      // elapsed time limit
+    private final Action action;        // what to do upon an excess
+    private final String migrateHost;   // where to go upon Action.MIGRATE
+
+    /**
+     * This constructor creates a quota.
+     *
+     * @param cpuMillis      the CPU time limit in milliseconds.
+     * @param allocatedBytes the heap allocation limit in bytes.
+     * @param wallMillis     the elapsed time limit in milliseconds.
+     * @param action         the action to take upon an excess.
+     * @param migrateHost    the host to migrate to upon Action.MIGRATE.
+     */
+    public AgentQuota( long cpuMillis, long allocatedBytes, long wallMillis,
+                       Action action, String migrateHost ) {
+        if ( action == Action.MIGRATE && migrateHost == null )
+            throw new IllegalArgumentException( "MIGRATE needs a host" );
+        this.cpuNanos = cpuMillis * 1000000L;
+        this.allocatedBytes = allocatedBytes;
+        this.wallMillis = wallMillis;
+        this.action = action;
+        this.migrateHost = migrateHost;
+    }
+
+    /**
+     * parse( ) reads a quota written as
+     * "cpuMillis,allocatedBytes,wallMillis,action[,migrateHost]",
+     * e.g. "500,0,10000,terminate".
+     *
+     * @param spec the quota specification.
+     * @return the quota.
+     */
+    public static AgentQuota parse( String spec ) {
+        String[] fields = spec.split( "," );
+        if ( fields.length < 4 )
+            throw new IllegalArgumentException( "bad quota: " + spec );
+        return new AgentQuota( Long.parseLong( fields[0].trim( ) ),
+                               Long.parseLong( fields[1].trim( ) ),
+                               Long.parseLong( fields[2].trim( ) ),
+                               Action.valueOf( fields[3].trim( ).toUpperCase( ) ),
+                               ( fields.length > 4 ) ? fields[4].trim( ) : null );
+    }
+
+    /**
+     * exceeded( ) checks a given usage against this quota.
+     *
+     * @param cpu   the CPU time used in nanoseconds.
+     * @param alloc the bytes allocated.
+     * @param wall  the elapsed time in milliseconds.
+     * @return the name of the exceeded limit, or null if within the quota.
+     */
+    public String exceeded( long cpu, long alloc, long wall ) {
+        if ( cpuNanos > 0 && cpu > cpuNanos )
+            return "cpu";
+        if ( allocatedBytes > 0 && alloc > allocatedBytes )
+            return "alloc";
+        if ( wallMillis > 0 && wall > wallMillis )
+            return "wall";
+        return null;
+    }
+
+    public Action getAction( ) {
+        return action;
+    }
+
+    public String getMigrateHost( ) {
+        return migrateHost;
+    }
+}
@@ -0,0 +1,179 @@
+package Mobile;
+
+import java.io.*;
+import java.rmi.Naming;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Mobile.Benchmark measures Mobile.Place features on the local host, and
+ * prints one result row per configuration.
+ *
+ *   scan [size]     scans size integers of local data with parallelMap( ),
+ *                   using 1 to N partitions where N is the available cores,
+ *                   and prints the scaling curve.
+ *   startup [port]  starts a Place process with the rmi and the direct
+ *                   transport in turn, and prints the time until it is
+ *                   ready, the time of the first call and of later calls.
+ */
+public class Benchmark {
+    public static String usage =
+        "usage: java -cp Mobile.jar Mobile.Benchmark scan [size] | startup [port]";
+
+    private static final int REPEAT = 5;   // runs per configuration
+    private static final int CALLS = 1000; // calls per startup run
+
+    /**
+     * ScanAgent counts the elements of its local data that pass a
+     * CPU-bound filter, one partition per chunk.
+     */
+    static class ScanAgent extends Agent {
+        final int[] data;
+        final List<Integer> chunks = new ArrayList<Integer>( );
+        final int chunkSize;
+
+        ScanAgent( int[] data, int chunkSize ) {
+            this.data = data;
+            this.chunkSize = chunkSize;
+            for ( int i = 0; i < data.length; i += chunkSize )
+                chunks.add( i );
+        }
+
+        long scan( ) {
+            List<Long> counts =
+                parallelMap( chunks, new Function<Integer, Long>( ) {
+                        public Long apply( Integer from ) {
+                            int to = Math.min( from + chunkSize, data.length );
+                            long count = 0;
+                            for ( int i = from; i < to; i++ ) {
+                                int h = data[i];
+                                for ( int r = 0; r < 16; r++ )
+                                    h = h * 0x9E3779B1 + ( h >>> 15 );
+                                if ( ( h & 7 ) == 0 )
+                                    count++;
+                            }
+                            return count;
+                        }
+                    } );
+            long total = 0;
+            for ( long c : counts )
+                total += c;
+            return total;
+        }
+    }
+
+    /**
+     * main( ) runs the benchmark given as the first argument.
+     *
+     * @param args the benchmark name followed by its parameters.
+     */
+    public static void main( String[] args ) throws Exception {
+        if ( args.length < 1 ) {
+            System.err.println( usage );
+            System.exit( -1 );
+        }
+        if ( args[0].equals( "scan" ) )
+            scan( ( args.length > 1 ) ? Integer.parseInt( args[1] ) : 1 << 24 );
+        else if ( args[0].equals( "startup" ) )
+            startup( ( args.length > 1 ) ? Integer.parseInt( args[1] ) : 23800 );
+        else {
+            System.err.println( usage );
+            System.exit( -1 );
+        }
+        System.exit( 0 );
+    }
+
+    /**
+     * scan( ) prints the scan time and speedup for each partition count.
+     *
+     * @param size the number of integers to scan.
+     */
+    private static void scan( int size ) throws Exception {
+        int[] data = new int[size];
+        Random random = new Random( 1 );
+        for ( int i = 0; i < size; i++ )
+            data[i] = random.nextInt( );
+
+        Place place = new Place( );
+        int cores = place.getExecutor( ).getAgentParallelism( );
+        ScanAgent agent = new ScanAgent( data, Math.max( 1, size / ( cores * 16 ) ) );
+        agent.setPlace( place );
+
+        System.out.println( "# scan of " + size + " ints, best of " + REPEAT );
+        System.out.println( "# cores\tmillis\tspeedup" );
+        double base = 0;
+        for ( int p = 1; p <= cores; p++ ) {
+            agent.setParallelism( p );
+            agent.scan( );                       // warm up
+            long best = Long.MAX_VALUE;
+            for ( int r = 0; r < REPEAT; r++ ) {
+                long start = System.nanoTime( );
+                agent.scan( );
+                best = Math.min( best, System.nanoTime( ) - start );
+            }
+            double millis = best / 1e6;
+            if ( p == 1 )
+                base = millis;
+            System.out.printf( "%d\t%.2f\t%.2f%n", p, millis, base / millis );
+        }
+    }
+
+    /**
+     * startup( ) prints the startup and call times of a Place process for
+     * each transport.
+     *
+     * @param port the port of the Place processes.
+     */
+    private static void startup( int port ) throws Exception {
+        String java = System.getProperty( "java.home" ) + File.separator +
+            "bin" + File.separator + "java";
+        String classPath = System.getProperty( "java.class.path" );
+
+        System.out.println( "# Place startup, best of " + REPEAT +
+                            ", calls averaged over " + CALLS );
+        System.out.println( "# transport\tready ms\tfirst call ms\tcall us" );
+        for ( String transport : new String[]{ "rmi", "direct" } ) {
+            long ready = Long.MAX_VALUE;
+            long first = Long.MAX_VALUE;
+            long call = Long.MAX_VALUE;
+            for ( int r = 0; r < REPEAT; r++ ) {
+                long start = System.nanoTime( );
+                Process place = new ProcessBuilder(
+                    java, "-DMobile.transport=" + transport, "-cp", classPath,
+                    "Mobile.Place", String.valueOf( port ) )
+                    .redirectErrorStream( true ).start( );
+                try {
+                    // wait for the line Place.main( ) prints when ready
+                    BufferedReader out = new BufferedReader(
+                        new InputStreamReader( place.getInputStream( ) ) );
+                    String line;
+                    while ( ( line = out.readLine( ) ) != null &&
+                            !line.startsWith( "Place is ready" ) )
+                        ;
+                    if ( line == null )
+                        throw new IOException( transport + " Place exited" );
+                    long started = System.nanoTime( );
+
+                    PlaceInterface remote = transport.equals( "direct" ) ?
+                        DirectPlaceClient.connect( "localhost", port ) :
+                        ( PlaceInterface )Naming.lookup(
+                            "rmi://localhost:" + port + "/place" );
+                    remote.getStats( );
+                    long called = System.nanoTime( );
+                    for ( int i = 0; i < CALLS; i++ )
+                        remote.getStats( );
+                    long done = System.nanoTime( );
+
+                    ready = Math.min( ready, started - start );
+                    first = Math.min( first, called - started );
+                    call = Math.min( call, ( done - called ) / CALLS );
+                } finally {
+                    place.destroy( );
+                    place.waitFor( );
+                }
+            }
+            System.out.printf( "%s\t%.1f\t%.2f\t%.1f%n", transport,
+                               ready / 1e6, first / 1e6, call / 1e3 );
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package Mobile;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Mobile.DirectEndpoint serves the Mobile.PlaceInterface calls of a
+ * Mobile.Place on a plain TCP port, without an RMI registry. Each request is
+ * a method name followed by its arguments as an Object[], and each response
+ * is a success flag followed by the result or the thrown exception, both
+ * written with object streams that stay open for further calls. Incoming
+ * requests may only contain java.lang classes, such as strings and boxed
+ * numbers, and primitive arrays. A connection that sends no call for
+ * IDLE_MILLIS is closed, along with its handler thread.
+ * Mobile.DirectPlaceClient is the calling side.
+ */
+public class DirectEndpoint {
+    public static final int IDLE_MILLIS = 60000;  // before closing a connection
+
+    // the only classes a request may contain, besides primitive arrays
+    private static final ObjectInputFilter REQUEST_FILTER =
+        ObjectInputFilter.Config.createFilter( "java.lang.*;!*" );
+
+    private final Place place;                    // the Place to serve
+    private final ServerSocket server;            // the well-known port
+    private final Map<String, Method> methods = new HashMap<String, Method>( );
+    private final ExecutorService handlers =
+        Executors.newCachedThreadPool( new ThreadFactory( ) {
+                public Thread newThread( Runnable r ) {
+                    Thread thread = new Thread( r, "direct-endpoint" );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+
+    /**
+     * This constructor listens on a given port and starts accepting calls
+     * to a given Place.
+     *
+     * @param place the Place to serve.
+     * @param port  the port to listen to.
+     */
+    public DirectEndpoint( Place place, int port ) throws IOException {
+        this.place = place;
+        for ( Method method : PlaceInterface.class.getMethods( ) )
+            methods.put( method.getName( ), method );
+        server = new ServerSocket( port );
+        // a non-daemon thread keeps the Place's JVM alive, as RMI does
+        new Thread( new Runnable( ) {
+                public void run( ) {
+                    accept( );
+                }
+            }, "direct-accept" ).start( );
+    }
+
+    /**
+     * close( ) stops accepting calls.
+     */
+    public void close( ) throws IOException {
+        server.close( );
+        handlers.shutdownNow( );
+    }
+
+    /**
+     * accept( ) hands every incoming connection to its own handler.
+     */
+    private void accept( ) {
+        while ( !server.isClosed( ) ) {
+            try {
+                final Socket socket = server.accept( );
+                handlers.execute( new Runnable( ) {
+                        public void run( ) {
+                            serve( socket );
+                        }
+                    } );
+            } catch ( IOException e ) {
+                if ( !server.isClosed( ) )
+                    e.printStackTrace( );
+            }
+        }
+    }
+
+    /**
+     * serve( ) answers the calls arriving on a connection until it closes.
+     */
+    private void serve( Socket socket ) {
+        try {
+            socket.setTcpNoDelay( true );
+            socket.setSoTimeout( IDLE_MILLIS );
+            ObjectOutputStream out = new ObjectOutputStream(
+                new BufferedOutputStream( socket.getOutputStream( ) ) );
+            out.flush( );
+            ObjectInputStream in = new ObjectInputStream(
+                new BufferedInputStream( socket.getInputStream( ) ) );
+            in.setObjectInputFilter( REQUEST_FILTER );
+            while ( true ) {
+                String name = in.readUTF( );
+                Object[] args = ( Object[] )in.readObject( );
+                Object result;
+                boolean ok = true;
+                try {
+                    Method method = methods.get( name );
+                    if ( method == null )
+                        throw new NoSuchMethodException( name );
+                    result = method.invoke( place, args );
+                } catch ( InvocationTargetException e ) {
+                    result = e.getTargetException( );
+                    ok = false;
+                } catch ( Exception e ) {
+                    result = e;
+                    ok = false;
+                }
+                out.writeBoolean( ok );
+                out.writeObject( result );
+                out.reset( );   // forget the objects written so far
+                out.flush( );
+            }
+        } catch ( EOFException | SocketTimeoutException e ) {
+            // the caller closed the connection, or left it idle
+        } catch ( Exception e ) {
+            if ( !server.isClosed( ) )
+                System.err.println( "direct endpoint: " + e );
+        } finally {
+            try {
+                socket.close( );
+            } catch ( IOException e ) { }
+        }
+    }
+}
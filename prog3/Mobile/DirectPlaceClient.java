@@ -0,0 +1,161 @@
+package Mobile;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.rmi.RemoteException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Mobile.DirectPlaceClient calls a Mobile.Place served by a
+ * Mobile.DirectEndpoint. It is a dynamic proxy of Mobile.PlaceInterface that
+ * keeps a pool of open connections to its Place: a call borrows an idle
+ * connection or opens a new one, and a connection that fails is closed
+ * rather than returned, so that a retry runs on another connection. A
+ * failure to connect is reported as a java.rmi.ConnectException, which
+ * means that the call never reached the Place. Connections left idle for
+ * half of DirectEndpoint.IDLE_MILLIS are closed rather than reused, before
+ * the endpoint closes them, and close( ) closes all of them.
+ * Connections are opened and read within the timeouts of the calling
+ * thread's Mobile.HopPolicy.
+ */
+public class DirectPlaceClient implements InvocationHandler {
+    private final String host;   // the Place's host
+    private final int port;      // the Place's well-known port
+    // idle connections to the Place
+    private final ConcurrentLinkedQueue<Connection> idle =
+        new ConcurrentLinkedQueue<Connection>( );
+    private volatile boolean closed = false;  // no more connections pooled
+
+    /**
+     * A Connection is a socket with its object streams.
+     */
+    private static class Connection {
+        final Socket socket;
+        final ObjectOutputStream out;
+        final ObjectInputStream in;
+        long lastUsed;   // System.currentTimeMillis( ) upon the last call
+
+        Connection( String host, int port, HopPolicy policy )
+            throws IOException {
+            socket = new Socket( );
+            socket.connect( new InetSocketAddress( host, port ),
+                            policy.getConnectTimeout( ) );
+            socket.setTcpNoDelay( true );
+            out = new ObjectOutputStream(
+                new BufferedOutputStream( socket.getOutputStream( ) ) );
+            out.flush( );
+            in = new ObjectInputStream(
+                new BufferedInputStream( socket.getInputStream( ) ) );
+        }
+
+        void close( ) {
+            try {
+                socket.close( );
+            } catch ( IOException e ) { }
+        }
+    }
+
+    private DirectPlaceClient( String host, int port ) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * connect( ) returns a PlaceInterface that calls the Place listening
+     * on a given host and port. No connection is opened until the first
+     * call.
+     *
+     * @param host the IP name of the Place's host.
+     * @param port the Place's port.
+     * @return the remote place.
+     */
+    public static PlaceInterface connect( String host, int port ) {
+        return ( PlaceInterface )java.lang.reflect.Proxy.newProxyInstance(
+            PlaceInterface.class.getClassLoader( ),
+            new Class[]{ PlaceInterface.class },
+            new DirectPlaceClient( host, port ) );
+    }
+
+    /**
+     * close( ) closes the pooled connections of a PlaceInterface returned
+     * by connect( ). Calls in progress close their connections as they end.
+     * Other PlaceInterface objects are left alone.
+     *
+     * @param place the remote place to close.
+     */
+    public static void close( PlaceInterface place ) {
+        if ( !java.lang.reflect.Proxy.isProxyClass( place.getClass( ) ) )
+            return;
+        InvocationHandler handler =
+            java.lang.reflect.Proxy.getInvocationHandler( place );
+        if ( handler instanceof DirectPlaceClient )
+            ( ( DirectPlaceClient )handler ).close( );
+    }
+
+    /**
+     * close( ) stops pooling connections and closes the idle ones.
+     */
+    private void close( ) {
+        closed = true;
+        Connection connection;
+        while ( ( connection = idle.poll( ) ) != null )
+            connection.close( );
+    }
+
+    /**
+     * invoke( ) sends a call to the Place and returns its result.
+     */
+    public Object invoke( Object proxy, Method method, Object[] args )
+        throws Throwable {
+        if ( method.getDeclaringClass( ) == Object.class ) {
+            switch ( method.getName( ) ) {
+            case "equals":   return proxy == args[0];
+            case "hashCode": return System.identityHashCode( proxy );
+            default:         return "DirectPlace[" + host + ":" + port + "]";
+            }
+        }
+
+        HopPolicy policy = PlaceConnector.currentPolicy( );
+        Connection connection;
+        long stale = System.currentTimeMillis( ) - DirectEndpoint.IDLE_MILLIS / 2;
+        while ( ( connection = idle.poll( ) ) != null &&
+                connection.lastUsed < stale )
+            connection.close( );   // the endpoint may be closing it
+        boolean ok;
+        Object result;
+        if ( connection == null ) {
+            try {
+                connection = new Connection( host, port, policy );
+            } catch ( IOException e ) {
+                // the call has not been sent
+                throw new java.rmi.ConnectException(
+                    "direct connection to " + host + ":" + port + " failed", e );
+            }
+        }
+        try {
+            connection.socket.setSoTimeout( policy.getCallTimeout( ) );
+            connection.out.writeUTF( method.getName( ) );
+            connection.out.writeObject( ( args == null ) ? new Object[0] : args );
+            connection.out.reset( );   // forget the objects written so far
+            connection.out.flush( );
+            ok = connection.in.readBoolean( );
+            result = connection.in.readObject( );
+        } catch ( IOException | ClassNotFoundException e ) {
+            connection.close( );
+            throw new RemoteException( "direct call to " + host + ":" + port +
+                                       " failed", e );
+        }
+        connection.lastUsed = System.currentTimeMillis( );
+        idle.offer( connection );
+        if ( closed )
+            close( );
+
+        if ( ok )
+            return result;
+        if ( result instanceof RemoteException ||
+             result instanceof RuntimeException || result instanceof Error )
+            throw ( Throwable )result;
+        throw new RemoteException( "remote exception", ( Throwable )result );
+    }
+}
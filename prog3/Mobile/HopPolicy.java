@@ -0,0 +1,108 @@
+package Mobile;
+
+import java.io.Serializable;
+
+/**
+ * Mobile.HopPolicy tells Mobile.Agent.hop( ) how long to wait for a remote
+ * Mobile.Place, how many times to retry it, which hosts to try when it stays
+ * unreachable, and which function to resume at home when every destination
+ * failed. An agent carries its policy along its migrations.
+ */
+public class HopPolicy implements Serializable {
+    public static final int CONNECT_TIMEOUT = 3000;  // default in milliseconds
+    public static final int CALL_TIMEOUT = 10000;    // default in milliseconds
+    public static final int RETRIES = 2;             // default per destination
+    public static final int BACKOFF = 200;           // default in milliseconds
+
+    private int connectTimeout = CONNECT_TIMEOUT; // to open a connection
+    private int callTimeout = CALL_TIMEOUT;       // to complete transfer( )
+    private int retries = RETRIES;                // retries per destination
+    private int backoff = BACKOFF;                // first retry delay
+    private String[] fallbackHosts = new String[0]; // tried in order
+    private String homeFunction = null;           // resumed at home
+
+    /**
+     * setTimeouts( ) sets the time to open a connection to a Place and the
+     * time to complete a call to it.
+     *
+     * @param connectTimeout the connect timeout in milliseconds.
+     * @param callTimeout    the call timeout in milliseconds.
+     * @return this policy.
+     */
+    public HopPolicy setTimeouts( int connectTimeout, int callTimeout ) {
+        this.connectTimeout = connectTimeout;
+        this.callTimeout = callTimeout;
+        return this;
+    }
+
+    /**
+     * setRetries( ) sets how many times a failed destination is retried,
+     * and the delay before the first retry. The delay doubles upon every
+     * retry and is randomized by +/-50% to spread out retrying agents.
+     *
+     * @param retries the number of retries per destination.
+     * @param backoff the first retry delay in milliseconds.
+     * @return this policy.
+     */
+    public HopPolicy setRetries( int retries, int backoff ) {
+        this.retries = retries;
+        this.backoff = backoff;
+        return this;
+    }
+
+    /**
+     * setFallbackHosts( ) sets the hosts to try in order when the requested
+     * destination cannot be reached.
+     *
+     * @param hosts the IP names of alternate destinations.
+     * @return this policy.
+     */
+    public HopPolicy setFallbackHosts( String... hosts ) {
+        this.fallbackHosts = ( hosts == null ) ? new String[0] : hosts.clone( );
+        return this;
+    }
+
+    /**
+     * setHomeFunction( ) sets the function invoked at the agent's home
+     * Place when no destination can be reached. The function receives the
+     * failed host and function names as its String[] arguments.
+     *
+     * @param function the name of a function, or null to stay put.
+     * @return this policy.
+     */
+    public HopPolicy setHomeFunction( String function ) {
+        this.homeFunction = function;
+        return this;
+    }
+
+    public int getConnectTimeout( ) {
+        return connectTimeout;
+    }
+
+    public int getCallTimeout( ) {
+        return callTimeout;
+    }
+
+    public int getRetries( ) {
+        return retries;
+    }
+
+    /**
+     * getBackoff( ) returns the jittered delay before a given retry.
+     *
+     * @param retry the retry number starting from 0.
+     * @return the delay in milliseconds.
+     */
+    public long getBackoff( int retry ) {
+        long delay = ( long )backoff << Math.min( retry, 16 );
+        return ( long )( delay * ( 0.5 + Math.random( ) ) );
+    }
+
+    public String[] getFallbackHosts( ) {
+        return fallbackHosts.clone( );
+    }
+
+    public String getHomeFunction( ) {
+        return homeFunction;
+    }
+}
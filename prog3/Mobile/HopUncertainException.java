@@ -0,0 +1,21 @@
+package Mobile;
+
+import java.rmi.RemoteException;
+
+/**
+ * Mobile.HopUncertainException is the failure Agent.hop( ) reports when a
+ * destination did not answer, but may have accepted the agent before its
+ * answer was lost. The agent may then be running at that destination, so
+ * hop( ) neither tries other hosts nor returns home.
+ */
+public class HopUncertainException extends RemoteException {
+    /**
+     * This constructor creates an exception about a given destination.
+     *
+     * @param destination the destination that did not answer.
+     * @param cause       the last failure of the destination.
+     */
+    public HopUncertainException( String destination, Throwable cause ) {
+        super( destination + " may have accepted the agent", cause );
+    }
+}
@@ -0,0 +1,116 @@
+package Mobile;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Mobile.LoadAgent is the agent that Mobile.LoadHarness injects. It visits a
+ * given number of randomly chosen Places carrying a payload of a given size,
+ * exchanges a given number of mailbox messages at each Place, and finally
+ * hops to the harness's sink Place, where it publishes the latency of each
+ * of its hops to the LoadHarness.DONE topic. A hop that fails is reported to
+ * the sink's LoadHarness.FAILED topic.
+ */
+public class LoadAgent extends Agent {
+    private String sink;          // host:port of the harness's sink Place
+    private String[] places;      // host:port of the Places to visit
+    private int hops;             // the number of Places to visit
+    private int messages;         // messages to exchange per Place
+    private byte[] state;         // payload carried along
+    private long sentMicros = 0;  // when the current hop started
+    private long[] latencies;     // hop latencies in microseconds
+    private int arrivals = 0;     // the number of latencies recorded
+
+    /**
+     * The constructor receives the sink, the number of hops, the state size
+     * in bytes, the messages per Place, and the Places to visit.
+     *
+     * @param args sink, hops, state, messages, and place1...N.
+     */
+    public LoadAgent( String[] args ) {
+        sink = args[0];
+        hops = Integer.parseInt( args[1] );
+        state = new byte[Integer.parseInt( args[2] )];
+        messages = Integer.parseInt( args[3] );
+        places = new String[args.length - 4];
+        System.arraycopy( args, 4, places, 0, places.length );
+        latencies = new long[hops + 1];
+        ThreadLocalRandom.current( ).nextBytes( state );
+    }
+
+    /**
+     * inject( ) sends this agent from the harness to its first Place.
+     */
+    public void inject( ) {
+        sentMicros = now( );
+        hop( next( ), "init" );
+    }
+
+    /**
+     * init( ) is called upon the first arrival.
+     */
+    public void init( ) {
+        step( );
+    }
+
+    /**
+     * step( ) is called upon each arrival at a Place to visit.
+     */
+    public void step( ) {
+        arrive( );
+        for ( int i = 0; i < messages; i++ ) {
+            publish( "load", "agent( " + agentId + ") message " + i );
+            receive( "load", 10 );
+        }
+        sentMicros = now( );
+        if ( arrivals < hops )
+            hop( next( ), "step" );
+        else
+            hop( sink, "report" );
+    }
+
+    /**
+     * report( ) is called upon the arrival at the sink.
+     */
+    public void report( ) {
+        arrive( );
+        StringBuilder line = new StringBuilder( );
+        for ( int i = 0; i < arrivals; i++ )
+            line.append( ( i == 0 ) ? "" : "," ).append( latencies[i] );
+        publish( LoadHarness.DONE, line.toString( ) );
+    }
+
+    /**
+     * onHopFailure( ) reports a failed hop to the sink.
+     */
+    protected void onHopFailure( String hostname, String function,
+                                 Exception cause ) {
+        if ( !publish( sink, LoadHarness.FAILED, hostname + " " + function +
+                       ": " + cause ) )
+            super.onHopFailure( hostname, function, cause );
+    }
+
+    /**
+     * arrive( ) records the latency of the hop that just ended.
+     */
+    private void arrive( ) {
+        if ( arrivals < latencies.length )
+            latencies[arrivals++] = now( ) - sentMicros;
+    }
+
+    /**
+     * next( ) chooses the next Place to visit.
+     */
+    private String next( ) {
+        return places[ThreadLocalRandom.current( ).nextInt( places.length )];
+    }
+
+    /**
+     * now( ) returns the microseconds since the epoch, comparable between
+     * the JVMs of one host.
+     */
+    private static long now( ) {
+        return ChronoUnit.MICROS.between( Instant.EPOCH, Instant.now( ) );
+    }
+}
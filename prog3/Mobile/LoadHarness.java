@@ -0,0 +1,446 @@
+package Mobile;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mobile.LoadHarness reproduces agent traffic against a set of local
+ * Places to validate their capacity. It starts K Places, either in its own
+ * JVM or as separate processes on consecutive ports, plus a sink Place in
+ * its own JVM. It injects Mobile.LoadAgent bursts at a target rate for a
+ * given duration, following a mix of agent profiles, and prints throughput,
+ * hop latency percentiles, errors, threads, heap, and GC activity once per
+ * interval, then a summary.
+ *
+ * A profile gives the number of Places an agent visits (hops), the payload
+ * it carries in bytes (state), the number of agents injected together
+ * (fanout), the mailbox messages it exchanges at each Place (messages), and
+ * its share of the injections (weight).
+ */
+public class LoadHarness {
+    public static final String DONE = "load.done";     // latencies topic
+    public static final String FAILED = "load.failed"; // failures topic
+
+    public static String usage =
+        "usage: java -cp Mobile.jar Mobile.LoadHarness [-places K] " +
+        "[-process] [-port base] [-rate bursts/s] [-duration s] " +
+        "[-interval s] [-mix profile;...]\n" +
+        "  profile: hops=3,state=1024,fanout=1,messages=0,weight=1";
+
+    private static final int INJECTORS = 16;      // concurrent injections
+    private static final long DRAIN_MILLIS = 10000; // to wait for stragglers
+
+    private final PrintStream out;                // the report
+    private int placeCount = 3;
+    private boolean processes = false;
+    private int basePort = 23000;
+    private double rate = 10;
+    private int duration = 30;
+    private int interval = 5;
+    private List<Profile> mix = new ArrayList<Profile>( );
+
+    private final List<String> places = new ArrayList<String>( );
+    private final List<Process> children = new ArrayList<Process>( );
+    private Place sink = null;
+    private String sinkAddress = null;
+
+    private final AtomicLong injected = new AtomicLong( );
+    private final AtomicLong completed = new AtomicLong( );
+    private final AtomicLong failed = new AtomicLong( );
+    private final AtomicLong injectErrors = new AtomicLong( );
+    private final LongList window = new LongList( ); // latencies this interval
+    private final LongList total = new LongList( );  // all latencies
+
+    /**
+     * A Profile describes one kind of agent in the mix.
+     */
+    static class Profile {
+        int hops = 3, state = 1024, fanout = 1, messages = 0, weight = 1;
+
+        static Profile parse( String spec ) {
+            Profile profile = new Profile( );
+            for ( String field : spec.split( "," ) ) {
+                if ( field.trim( ).isEmpty( ) )
+                    continue;
+                String[] kv = field.split( "=" );
+                int value = Integer.parseInt( kv[1].trim( ) );
+                switch ( kv[0].trim( ) ) {
+                case "hops":     profile.hops = Math.max( value, 1 ); break;
+                case "state":    profile.state = value; break;
+                case "fanout":   profile.fanout = Math.max( value, 1 ); break;
+                case "messages": profile.messages = value; break;
+                case "weight":   profile.weight = Math.max( value, 0 ); break;
+                default:
+                    throw new IllegalArgumentException( "bad profile: " + spec );
+                }
+            }
+            return profile;
+        }
+    }
+
+    /**
+     * LongList is a growable array of longs, synchronized on itself.
+     */
+    static class LongList {
+        private long[] values = new long[1024];
+        private int size = 0;
+
+        synchronized void add( long value ) {
+            if ( size == values.length )
+                values = Arrays.copyOf( values, size * 2 );
+            values[size++] = value;
+        }
+
+        synchronized long[] drain( ) {
+            long[] copy = Arrays.copyOf( values, size );
+            size = 0;
+            return copy;
+        }
+
+        synchronized long[] sorted( ) {
+            long[] copy = Arrays.copyOf( values, size );
+            Arrays.sort( copy );
+            return copy;
+        }
+    }
+
+    private LoadHarness( PrintStream out ) {
+        this.out = out;
+    }
+
+    /**
+     * main( ) runs the harness with given options.
+     *
+     * @param args the options described in usage.
+     */
+    public static void main( String[] args ) {
+        // keep the report apart from what the Places and agents print
+        LoadHarness harness = new LoadHarness( System.out );
+        try {
+            harness.parse( args );
+        } catch ( RuntimeException e ) {
+            System.err.println( e.getMessage( ) );
+            System.err.println( usage );
+            System.exit( -1 );
+        }
+        System.setOut( new PrintStream( OutputStream.nullOutputStream( ) ) );
+        int status = 0;
+        try {
+            harness.run( );
+        } catch ( Exception e ) {
+            e.printStackTrace( );
+            status = -1;
+        } finally {
+            for ( Process child : harness.children )
+                child.destroy( );
+        }
+        System.exit( status );
+    }
+
+    /**
+     * parse( ) reads the command-line options.
+     */
+    private void parse( String[] args ) {
+        for ( int i = 0; i < args.length; i++ ) {
+            String option = args[i];
+            if ( option.equals( "-process" ) ) {
+                processes = true;
+                continue;
+            }
+            if ( i + 1 >= args.length )
+                throw new IllegalArgumentException( "missing value: " + option );
+            String value = args[++i];
+            switch ( option ) {
+            case "-places":   placeCount = Integer.parseInt( value ); break;
+            case "-port":     basePort = Integer.parseInt( value ); break;
+            case "-rate":     rate = Double.parseDouble( value ); break;
+            case "-duration": duration = Integer.parseInt( value ); break;
+            case "-interval": interval = Integer.parseInt( value ); break;
+            case "-mix":
+                for ( String spec : value.split( ";" ) )
+                    mix.add( Profile.parse( spec ) );
+                break;
+            default:
+                throw new IllegalArgumentException( "bad option: " + option );
+            }
+        }
+        if ( mix.isEmpty( ) )
+            mix.add( new Profile( ) );
+        if ( placeCount < 1 || rate <= 0 || duration < 1 || interval < 1 )
+            throw new IllegalArgumentException( "bad option value" );
+    }
+
+    /**
+     * run( ) starts the Places, injects the load, and reports.
+     */
+    private void run( ) throws Exception {
+        startPlaces( );
+
+        // collect the agents that finished or failed at the sink
+        ExecutorService collectors = Executors.newFixedThreadPool( 2 );
+        final Mailbox mailbox = sink.getMailbox( );
+        final AtomicBoolean running = new AtomicBoolean( true );
+        collectors.execute( new Runnable( ) {
+                public void run( ) {
+                    while ( running.get( ) ) {
+                        String line = receive( mailbox, DONE );
+                        if ( line == null )
+                            continue;
+                        for ( String latency : line.split( "," ) ) {
+                            long micros = Long.parseLong( latency );
+                            window.add( micros );
+                            total.add( micros );
+                        }
+                        completed.incrementAndGet( );
+                    }
+                }
+            } );
+        collectors.execute( new Runnable( ) {
+                public void run( ) {
+                    while ( running.get( ) ) {
+                        String line = receive( mailbox, FAILED );
+                        if ( line != null && failed.incrementAndGet( ) <= 10 )
+                            System.err.println( "failed hop: " + line );
+                    }
+                }
+            } );
+
+        // inject bursts at the target rate
+        final ExecutorService injectors = Executors.newFixedThreadPool( INJECTORS );
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor( );
+        final int weights = totalWeight( );
+        ticker.scheduleAtFixedRate( new Runnable( ) {
+                public void run( ) {
+                    final Profile profile = choose( weights );
+                    for ( int i = 0; i < profile.fanout; i++ )
+                        injectors.execute( new Runnable( ) {
+                                public void run( ) {
+                                    inject( profile );
+                                }
+                            } );
+                }
+            }, 0, Math.max( 1, ( long )( 1e6 / rate ) ), TimeUnit.MICROSECONDS );
+
+        out.println( "# " + placeCount + ( processes ? " process" : " in-JVM" ) +
+                     " Places from port " + basePort + ", " + rate +
+                     " bursts/s for " + duration + "s" );
+        out.println( "# sec\tinjected\tdone\tfailed\tdone/s\tp50ms\tp90ms" +
+                     "\tp99ms\tmaxms\tthreads\theapMB\tgcCount\tgcMs" );
+        long start = System.currentTimeMillis( );
+        long last = completed.get( );
+        for ( int t = interval; t <= duration; t += interval ) {
+            Thread.sleep( Math.max( 0, start + t * 1000L -
+                                    System.currentTimeMillis( ) ) );
+            long done = completed.get( );
+            row( Integer.toString( t ), window.drain( ), ( done - last ) /
+                 ( double )interval );
+            last = done;
+        }
+
+        // stop injecting, and let the agents in flight arrive
+        ticker.shutdownNow( );
+        injectors.shutdown( );
+        injectors.awaitTermination( DRAIN_MILLIS, TimeUnit.MILLISECONDS );
+        long deadline = System.currentTimeMillis( ) + DRAIN_MILLIS;
+        while ( completed.get( ) + failed.get( ) < injected.get( ) &&
+                System.currentTimeMillis( ) < deadline )
+            Thread.sleep( 100 );
+        running.set( false );
+        collectors.shutdown( );
+        collectors.awaitTermination( 1, TimeUnit.SECONDS );
+        summary( );
+    }
+
+    /**
+     * startPlaces( ) starts the Places to load and the sink, and waits
+     * until every one answers.
+     */
+    private void startPlaces( ) throws Exception {
+        // child Places run on the same JVM as the harness
+        String java = System.getProperty( "java.home" ) + File.separator +
+            "bin" + File.separator + "java";
+        for ( int i = 0; i < placeCount; i++ ) {
+            int port = basePort + i;
+            if ( processes ) {
+                ProcessBuilder builder = new ProcessBuilder(
+                    java, "-cp", System.getProperty( "java.class.path" ),
+                    "-DMobile.transport=" +
+                    System.getProperty( "Mobile.transport", "rmi" ),
+                    "Mobile.Place", Integer.toString( port ) );
+                builder.redirectOutput( ProcessBuilder.Redirect.DISCARD );
+                builder.redirectError( ProcessBuilder.Redirect.INHERIT );
+                children.add( builder.start( ) );
+            } else
+                Place.start( port );
+            places.add( "localhost:" + port );
+        }
+        sink = Place.start( basePort + placeCount );
+        sinkAddress = "localhost:" + ( basePort + placeCount );
+        for ( String place : places )
+            if ( stats( place, 15000 ) == null )
+                throw new IOException( "no answer from Place " + place );
+    }
+
+    /**
+     * inject( ) creates an agent of a given profile and sends it to its
+     * first Place.
+     */
+    private void inject( Profile profile ) {
+        String[] args = new String[4 + places.size( )];
+        args[0] = sinkAddress;
+        args[1] = Integer.toString( profile.hops );
+        args[2] = Integer.toString( profile.state );
+        args[3] = Integer.toString( profile.messages );
+        for ( int i = 0; i < places.size( ); i++ )
+            args[4 + i] = places.get( i );
+        try {
+            LoadAgent agent = new LoadAgent( args );
+            agent.setPort( basePort );
+            injected.incrementAndGet( );
+            agent.inject( );
+        } catch ( RuntimeException e ) {
+            injectErrors.incrementAndGet( );
+            e.printStackTrace( );
+        }
+    }
+
+    /**
+     * row( ) prints one report line.
+     */
+    private void row( String label, long[] latencies, double throughput ) {
+        Arrays.sort( latencies );
+        long[] jvm = jvmGauges( );
+        out.printf( "%s\t%d\t%d\t%d\t%.1f\t%s\t%s\t%s\t%s\t%d\t%d\t%d\t%d%n",
+                    label, injected.get( ), completed.get( ), failed.get( ),
+                    throughput, percentile( latencies, 0.50 ),
+                    percentile( latencies, 0.90 ), percentile( latencies, 0.99 ),
+                    percentile( latencies, 1.0 ), jvm[0], jvm[1] >> 20, jvm[2],
+                    jvm[3] );
+    }
+
+    /**
+     * summary( ) prints the totals of the run.
+     */
+    private void summary( ) {
+        long[] latencies = total.sorted( );
+        long rejected = 0, hopFailed = 0, retries = 0;
+        for ( String place : places ) {
+            Map<String, Long> stats = stats( place, 2000 );
+            if ( stats == null )
+                continue;
+            rejected += value( stats, "agents.rejected" );
+            hopFailed += value( stats, "hop.failed" );
+            retries += value( stats, "hop.retries" );
+        }
+        out.println( "# total" );
+        row( "all", latencies, completed.get( ) / ( double )duration );
+        out.println( "# hops " + latencies.length + ", lost agents " +
+                     Math.max( 0, injected.get( ) - completed.get( ) -
+                               failed.get( ) ) +
+                     ", inject errors " + injectErrors.get( ) +
+                     ", rejected " + rejected + ", failed hops " + hopFailed +
+                     ", hop retries " + retries );
+    }
+
+    /**
+     * jvmGauges( ) returns the threads, used heap bytes, GC count, and GC
+     * milliseconds of all JVMs running Places.
+     */
+    private long[] jvmGauges( ) {
+        long[] sum = new long[4];
+        List<String> jvms = new ArrayList<String>( );
+        jvms.add( sinkAddress );   // the harness JVM
+        if ( processes )
+            jvms.addAll( places );
+        for ( String place : jvms ) {
+            Map<String, Long> stats = stats( place, 2000 );
+            if ( stats == null )
+                continue;
+            sum[0] += value( stats, "jvm.threads" );
+            sum[1] += value( stats, "jvm.heapUsed" );
+            sum[2] += value( stats, "jvm.gcCount" );
+            sum[3] += value( stats, "jvm.gcMillis" );
+        }
+        return sum;
+    }
+
+    /**
+     * stats( ) returns the counters of a Place, retrying until a deadline.
+     */
+    private Map<String, Long> stats( String place, long timeout ) {
+        long deadline = System.currentTimeMillis( ) + timeout;
+        HopPolicy policy = new HopPolicy( ).setTimeouts( 1000, 2000 );
+        while ( true ) {
+            try {
+                return PlaceConnector.call( place, basePort, policy,
+                    new PlaceConnector.Call<Map<String, Long>>( ) {
+                        public Map<String, Long> call( PlaceInterface p )
+                            throws Exception {
+                            return p.getStats( );
+                        }
+                    } );
+            } catch ( Exception e ) {
+                if ( System.currentTimeMillis( ) >= deadline )
+                    return null;
+                try {
+                    Thread.sleep( 200 );
+                } catch ( InterruptedException ie ) {
+                    return null;
+                }
+            }
+        }
+    }
+
+    private static long value( Map<String, Long> stats, String name ) {
+        Long value = stats.get( name );
+        return ( value == null ) ? 0 : value;
+    }
+
+    /**
+     * percentile( ) returns a percentile of sorted microseconds in
+     * milliseconds, or "-" if there are none.
+     */
+    private static String percentile( long[] sorted, double p ) {
+        if ( sorted.length == 0 )
+            return "-";
+        int index = ( int )Math.ceil( p * sorted.length ) - 1;
+        return String.format( "%.2f",
+                              sorted[Math.max( 0, index )] / 1000.0 );
+    }
+
+    private int totalWeight( ) {
+        int sum = 0;
+        for ( Profile profile : mix )
+            sum += profile.weight;
+        if ( sum == 0 )
+            throw new IllegalArgumentException( "all weights are 0" );
+        return sum;
+    }
+
+    /**
+     * choose( ) picks a profile at random according to the weights.
+     */
+    private Profile choose( int weights ) {
+        int pick = ThreadLocalRandom.current( ).nextInt( weights );
+        for ( Profile profile : mix ) {
+            pick -= profile.weight;
+            if ( pick < 0 )
+                return profile;
+        }
+        return mix.get( mix.size( ) - 1 );
+    }
+
+    /**
+     * receive( ) waits briefly for a message of the sink.
+     */
+    private static String receive( Mailbox mailbox, String topic ) {
+        try {
+            return mailbox.receive( topic, 200 );
+        } catch ( InterruptedException e ) {
+            return null;
+        }
+    }
+}
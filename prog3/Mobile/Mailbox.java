@@ -0,0 +1,314 @@
+package Mobile;
+
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Mobile.Mailbox is the topic-based message board of a Mobile.Place. Agents
+ * running on the Place publish messages to a topic, take them out with a
+ * blocking receive( ), or subscribe a Mobile.MessageListener that is called
+ * back upon every publication. A message published to a topic that has
+ * subscribers goes to them only; otherwise it is queued for receive( ) in a
+ * lock-free queue bounded to a fixed capacity. Callbacks waiting for the
+ * dispatcher are bounded to the same capacity, and topics left empty and
+ * without subscribers or receivers are expired.
+ */
+public class Mailbox {
+    public static final int DEFAULT_CAPACITY = 1024; // messages per topic
+    public static final long EXPIRE_MILLIS = 1000;   // between topic sweeps
+
+    private final int capacity;   // the maximum number of queued messages
+    // topics in use
+    private final ConcurrentHashMap<String, Topic> topics =
+        new ConcurrentHashMap<String, Topic>( );
+    // when idle topics were last expired, in milliseconds
+    private final AtomicLong lastSweep =
+        new AtomicLong( System.currentTimeMillis( ) );
+    // a single thread to call back listeners in publication order
+    private final ThreadPoolExecutor dispatcher;
+
+    /**
+     * A topic holds its queued messages, the threads blocked in receive( ),
+     * and its callback subscriptions. users counts the calls working on the
+     * topic, and is -1 once the topic has expired.
+     */
+    private static class Topic {
+        final ConcurrentLinkedQueue<String> queue =
+            new ConcurrentLinkedQueue<String>( );
+        final AtomicInteger size = new AtomicInteger( );
+        final ConcurrentLinkedQueue<Thread> waiters =
+            new ConcurrentLinkedQueue<Thread>( );
+        final CopyOnWriteArrayList<Subscription> subscribers =
+            new CopyOnWriteArrayList<Subscription>( );
+        final AtomicInteger users = new AtomicInteger( );
+
+        // acquire( ) enters a call, unless the topic has expired
+        boolean acquire( ) {
+            int n;
+            do {
+                n = users.get( );
+                if ( n < 0 )
+                    return false;
+            } while ( !users.compareAndSet( n, n + 1 ) );
+            return true;
+        }
+
+        void release( ) {
+            users.decrementAndGet( );
+        }
+
+        boolean idle( ) {
+            return size.get( ) == 0 && subscribers.isEmpty( ) &&
+                waiters.isEmpty( );
+        }
+    }
+
+    /**
+     * A subscription ties a listener to the agent that registered it, so
+     * that all of its listeners can be dropped when the agent leaves.
+     */
+    private static class Subscription {
+        final Agent owner;
+        final MessageListener listener;
+
+        Subscription( Agent owner, MessageListener listener ) {
+            this.owner = owner;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * This constructor creates a mailbox whose topics queue up to
+     * DEFAULT_CAPACITY messages.
+     */
+    public Mailbox( ) {
+        this( DEFAULT_CAPACITY );
+    }
+
+    /**
+     * This constructor creates a mailbox whose topics queue up to a given
+     * number of messages.
+     *
+     * @param capacity the maximum number of queued messages per topic.
+     */
+    public Mailbox( int capacity ) {
+        if ( capacity <= 0 )
+            throw new IllegalArgumentException( "capacity: " + capacity );
+        this.capacity = capacity;
+        dispatcher = new ThreadPoolExecutor(
+            1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>( capacity ),
+            new ThreadFactory( ) {
+                public Thread newThread( Runnable r ) {
+                    Thread thread = new Thread( r, "mailbox-dispatcher" );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+    }
+
+    /**
+     * publish( ) hands a message to every listener subscribed to a topic,
+     * or queues it for receive( ) if the topic has no subscribers.
+     *
+     * @param topic   the topic to publish to.
+     * @param message the message to publish.
+     * @return true if the message was delivered or queued, false if the
+     *         topic or the dispatcher was full.
+     */
+    public boolean publish( String topic, String message ) {
+        Topic t = acquire( topic );
+        try {
+            // call back subscribers, all in one dispatcher slot
+            final Object[] subscribers = t.subscribers.toArray( );
+            if ( subscribers.length > 0 ) {
+                final String name = topic, msg = message;
+                try {
+                    dispatcher.execute( new Runnable( ) {
+                            public void run( ) {
+                                for ( Object s : subscribers ) {
+                                    try {
+                                        ( ( Subscription )s ).listener
+                                            .onMessage( name, msg );
+                                    } catch ( RuntimeException e ) {
+                                        e.printStackTrace( );
+                                    }
+                                }
+                            }
+                        } );
+                } catch ( RejectedExecutionException e ) {
+                    return false;
+                }
+                return true;
+            }
+
+            // reserve a slot in the queue
+            int n;
+            do {
+                n = t.size.get( );
+                if ( n >= capacity )
+                    return false;
+            } while ( !t.size.compareAndSet( n, n + 1 ) );
+            t.queue.offer( message );
+
+            // wake up the receivers so that one of them can take it
+            for ( Thread waiter : t.waiters )
+                LockSupport.unpark( waiter );
+            return true;
+        } finally {
+            t.release( );
+        }
+    }
+
+    /**
+     * receive( ) takes the oldest message of a topic, waiting for one to be
+     * published if the topic is empty.
+     *
+     * @param topic   the topic to receive from.
+     * @param timeout the maximum time to wait in milliseconds.
+     * @return the message, or null if none arrived within timeout.
+     */
+    public String receive( String topic, long timeout )
+        throws InterruptedException {
+        Topic t = acquire( topic );
+        Thread self = Thread.currentThread( );
+        try {
+            String message = poll( t );
+            if ( message != null || timeout <= 0 )
+                return message;
+
+            long deadline = System.nanoTime( ) + timeout * 1000000L;
+            t.waiters.add( self );
+            while ( ( message = poll( t ) ) == null ) {
+                long remaining = deadline - System.nanoTime( );
+                if ( remaining <= 0 )
+                    break;
+                LockSupport.parkNanos( this, remaining );
+                if ( Thread.interrupted( ) )
+                    throw new InterruptedException( );
+            }
+            return message;
+        } finally {
+            t.waiters.remove( self );
+            t.release( );
+        }
+    }
+
+    /**
+     * subscribe( ) registers a listener to be called back upon every message
+     * published to a topic.
+     *
+     * @param owner    the agent that owns this subscription.
+     * @param topic    the topic to subscribe to.
+     * @param listener the listener to call back.
+     */
+    public void subscribe( Agent owner, String topic,
+                           MessageListener listener ) {
+        Topic t = acquire( topic );
+        t.subscribers.add( new Subscription( owner, listener ) );
+        t.release( );
+    }
+
+    /**
+     * unsubscribe( ) removes a listener from a topic.
+     *
+     * @param topic    the topic to unsubscribe from.
+     * @param listener the listener to remove.
+     */
+    public void unsubscribe( String topic, MessageListener listener ) {
+        Topic t = topics.get( topic );
+        if ( t == null )
+            return;
+        for ( Subscription s : t.subscribers )
+            if ( s.listener == listener )
+                t.subscribers.remove( s );
+    }
+
+    /**
+     * unsubscribeAll( ) removes all listeners registered by a given agent,
+     * which is called when the agent terminates or leaves this Place.
+     *
+     * @param owner the agent whose subscriptions are removed.
+     */
+    public void unsubscribeAll( Agent owner ) {
+        for ( Topic t : topics.values( ) )
+            for ( Subscription s : t.subscribers )
+                if ( s.owner == owner )
+                    t.subscribers.remove( s );
+    }
+
+    /**
+     * size( ) returns the number of messages queued in a topic.
+     *
+     * @param topic the topic to examine.
+     * @return the number of queued messages.
+     */
+    public int size( String topic ) {
+        Topic t = topics.get( topic );
+        return ( t == null ) ? 0 : t.size.get( );
+    }
+
+    /**
+     * topics( ) returns the number of topics in use.
+     *
+     * @return the number of topics.
+     */
+    public int topics( ) {
+        return topics.size( );
+    }
+
+    /**
+     * acquire( ) returns a given topic, creating it if it is not in use, and
+     * enters a call on it that the caller must release( ).
+     */
+    private Topic acquire( String topic ) {
+        expire( );
+        while ( true ) {
+            Topic t = topics.get( topic );
+            if ( t == null ) {
+                Topic created = new Topic( );
+                t = topics.putIfAbsent( topic, created );
+                if ( t == null )
+                    t = created;
+            }
+            if ( t.acquire( ) )
+                return t;
+            // the sweeper is expiring the topic: wait until it has removed
+            // it or found it in use, since only the sweeper removes topics
+            Thread.onSpinWait( );
+        }
+    }
+
+    /**
+     * expire( ) removes the idle topics, at most once per EXPIRE_MILLIS.
+     */
+    private void expire( ) {
+        long last = lastSweep.get( );
+        long now = System.currentTimeMillis( );
+        if ( now - last < EXPIRE_MILLIS || !lastSweep.compareAndSet( last, now ) )
+            return;
+        for ( Map.Entry<String, Topic> entry : topics.entrySet( ) ) {
+            Topic t = entry.getValue( );
+            if ( !t.idle( ) || !t.users.compareAndSet( 0, -1 ) )
+                continue;
+            // no call can enter now, so check again for one that just left
+            if ( t.idle( ) )
+                topics.remove( entry.getKey( ), t );
+            else
+                t.users.set( 0 );
+        }
+    }
+
+    /**
+     * poll( ) takes a message out of a topic without waiting.
+     */
+    private String poll( Topic t ) {
+        String message = t.queue.poll( );
+        if ( message != null )
+            t.size.decrementAndGet( );
+        return message;
+    }
+}
@@ -0,0 +1,17 @@
+package Mobile;
+
+/**
+ * Mobile.MessageListener receives the messages published to a topic of the
+ * local Mobile.Mailbox that an agent subscribed to through
+ * Mobile.Agent.subscribe( ).
+ */
+public interface MessageListener {
+    /**
+     * onMessage( ) is called from the mailbox delivery thread each time a
+     * message is published to a subscribed topic.
+     *
+     * @param topic   the topic the message was published to.
+     * @param message the published message.
+     */
+    public void onMessage( String topic, String message );
+}
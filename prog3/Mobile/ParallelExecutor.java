@@ -0,0 +1,129 @@
+package Mobile;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Mobile.ParallelExecutor runs the data-parallel work of agents on a
+ * ForkJoinPool shared by all agents on a Mobile.Place. Each call splits its
+ * input into as many partitions as the calling agent may use at once, and
+ * returns only after every partition has finished, so that the agent can
+ * safely hop( ) right after. The CPU time and allocations of the pool
+ * workers count against the calling agent's quota while they run. Once a
+ * partition fails or the calling agent is stopped, the other partitions
+ * stop before their next element.
+ *
+ * The pool size and the per-agent limit default to the number of available
+ * processors, and can be set with the system properties "Mobile.parallelism"
+ * and "Mobile.agentParallelism".
+ */
+public class ParallelExecutor {
+    private final ForkJoinPool pool;          // workers shared by all agents
+    private final int agentParallelism;       // partitions per agent call
+    private final ResourceMonitor monitor;    // to charge worker usage
+    private final PlaceStats stats;           // to count calls and tasks
+
+    /**
+     * This constructor creates the shared pool.
+     *
+     * @param monitor the monitor to charge worker usage to.
+     * @param stats   the Place statistics.
+     */
+    public ParallelExecutor( ResourceMonitor monitor, PlaceStats stats ) {
+        int cores = Runtime.getRuntime( ).availableProcessors( );
+        int parallelism = Integer.getInteger( "Mobile.parallelism", cores );
+        this.pool = new ForkJoinPool( parallelism );
+        this.agentParallelism =
+            Math.min( Integer.getInteger( "Mobile.agentParallelism",
+                                          parallelism ), parallelism );
+        this.monitor = monitor;
+        this.stats = stats;
+    }
+
+    /**
+     * getAgentParallelism( ) returns the maximum number of partitions that
+     * a single agent call runs at once.
+     */
+    public int getAgentParallelism( ) {
+        return agentParallelism;
+    }
+
+    /**
+     * map( ) applies a function to every element of a given input in
+     * parallel and returns the results in the input order.
+     *
+     * @param agent       the calling agent.
+     * @param input       the elements to map.
+     * @param function    the function to apply.
+     * @param parallelism the partitions requested by the agent, or 0 for
+     *                    the per-agent limit.
+     * @return the mapped elements.
+     */
+    public <T, R> List<R> map( final Agent agent, final List<T> input,
+                               final Function<? super T, ? extends R> function,
+                               int parallelism ) {
+        int size = input.size( );
+        int limit = ( parallelism <= 0 ) ? agentParallelism :
+            Math.min( parallelism, agentParallelism );
+        int partitions = Math.min( limit, size );
+        final Object[] results = new Object[size];
+        final AtomicBoolean cancelled = new AtomicBoolean( );
+        stats.increment( "parallel.calls" );
+
+        // fork one task per contiguous partition
+        List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>( );
+        for ( int p = 0; p < partitions; p++ ) {
+            final int from = ( int )( ( long )size * p / partitions );
+            final int to = ( int )( ( long )size * ( p + 1 ) / partitions );
+            tasks.add( pool.submit( new Runnable( ) {
+                    public void run( ) {
+                        ResourceMonitor.Work work = monitor.startWork( agent );
+                        try {
+                            for ( int i = from; i < to && !cancelled.get( ); i++ )
+                                results[i] = function.apply( input.get( i ) );
+                        } finally {
+                            monitor.endWork( work );
+                        }
+                    }
+                } ) );
+        }
+        stats.add( "parallel.tasks", partitions );
+
+        // join all partitions before reporting the first failure
+        RuntimeException failure = null;
+        boolean joined = false;
+        try {
+            for ( ForkJoinTask<?> task : tasks ) {
+                try {
+                    task.join( );
+                } catch ( RuntimeException e ) {
+                    if ( failure == null )
+                        failure = e;
+                    cancelled.set( true );   // the result is lost anyway
+                }
+            }
+            joined = true;
+        } finally {
+            // the caller was stopped while waiting
+            if ( !joined ) {
+                cancelled.set( true );
+                stats.increment( "parallel.cancelled" );
+            }
+        }
+        if ( failure != null )
+            throw failure;
+
+        @SuppressWarnings( "unchecked" )
+        List<R> list = ( List<R> )Arrays.asList( results );
+        return list;
+    }
+
+    /**
+     * shutdown( ) stops the pool workers.
+     */
+    public void shutdown( ) {
+        pool.shutdownNow( );
+    }
+}
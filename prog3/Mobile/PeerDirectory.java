@@ -0,0 +1,145 @@
+package Mobile;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Mobile.PeerDirectory keeps the "host:port" addresses of the other Places
+ * a Mobile.Place knows about. Peers come from a static seed list given in
+ * the system property "Mobile.seeds" as comma-separated addresses, and
+ * optionally from local multicast: if "Mobile.multicast" gives a
+ * "group:port", the Place announces itself to that group every
+ * ANNOUNCE_MILLIS and adds every Place it hears from. A peer that has not
+ * been heard from for three announcements is dropped, while seeds stay.
+ */
+public class PeerDirectory {
+    public static final long ANNOUNCE_MILLIS = 5000;
+    private static final String HELLO = "mobile-place ";  // announcement prefix
+
+    private final String self;       // this Place's own address
+    private final Set<String> seeds = new LinkedHashSet<String>( );
+    // peers heard from by multicast, with the time last heard
+    private final ConcurrentHashMap<String, Long> heard =
+        new ConcurrentHashMap<String, Long>( );
+    private MulticastSocket socket = null;
+    private ScheduledExecutorService announcer = null;
+
+    /**
+     * This constructor reads the seeds and starts multicast discovery if
+     * configured.
+     *
+     * @param host this Place's host name.
+     * @param port this Place's port.
+     */
+    public PeerDirectory( String host, int port ) {
+        this.self = host + ":" + port;
+        String list = System.getProperty( "Mobile.seeds" );
+        if ( list != null )
+            for ( String seed : list.split( "," ) )
+                if ( !seed.trim( ).isEmpty( ) && !seed.trim( ).equals( self ) )
+                    seeds.add( seed.trim( ) );
+
+        String group = System.getProperty( "Mobile.multicast" );
+        if ( group != null ) {
+            try {
+                startMulticast( group );
+            } catch ( IOException e ) {
+                System.err.println( "multicast discovery disabled: " + e );
+            }
+        }
+    }
+
+    /**
+     * peers( ) returns the addresses of the known Places, seeds first.
+     *
+     * @return a list of "host:port" addresses.
+     */
+    public List<String> peers( ) {
+        long oldest = System.currentTimeMillis( ) - 3 * ANNOUNCE_MILLIS;
+        List<String> peers = new ArrayList<String>( seeds );
+        for ( Map.Entry<String, Long> peer : heard.entrySet( ) ) {
+            if ( peer.getValue( ) < oldest )
+                heard.remove( peer.getKey( ), peer.getValue( ) );
+            else if ( !seeds.contains( peer.getKey( ) ) )
+                peers.add( peer.getKey( ) );
+        }
+        return peers;
+    }
+
+    /**
+     * close( ) stops multicast discovery.
+     */
+    public void close( ) {
+        if ( announcer != null )
+            announcer.shutdownNow( );
+        if ( socket != null )
+            socket.close( );
+    }
+
+    /**
+     * startMulticast( ) joins a multicast group, announces this Place
+     * periodically, and listens to the announcements of others.
+     *
+     * @param group the group as "address:port".
+     */
+    private void startMulticast( String group ) throws IOException {
+        int colon = group.lastIndexOf( ':' );
+        final InetAddress address =
+            InetAddress.getByName( group.substring( 0, colon ) );
+        final int port = Integer.parseInt( group.substring( colon + 1 ) );
+        socket = new MulticastSocket( port );
+        socket.joinGroup( new InetSocketAddress( address, port ), null );
+
+        ThreadFactory daemons = new ThreadFactory( ) {
+                public Thread newThread( Runnable r ) {
+                    Thread thread = new Thread( r, "peer-discovery" );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            };
+        announcer = Executors.newScheduledThreadPool( 2, daemons );
+        final byte[] hello = ( HELLO + self ).getBytes( StandardCharsets.UTF_8 );
+        announcer.scheduleAtFixedRate( new Runnable( ) {
+                public void run( ) {
+                    try {
+                        socket.send( new DatagramPacket( hello, hello.length,
+                                                         address, port ) );
+                    } catch ( IOException e ) {
+                        if ( !socket.isClosed( ) )
+                            System.err.println( "announcement failed: " + e );
+                    }
+                }
+            }, 0, ANNOUNCE_MILLIS, TimeUnit.MILLISECONDS );
+        announcer.execute( new Runnable( ) {
+                public void run( ) {
+                    listen( );
+                }
+            } );
+    }
+
+    /**
+     * listen( ) records the Places heard from until the socket closes.
+     */
+    private void listen( ) {
+        byte[] buf = new byte[512];
+        while ( !socket.isClosed( ) ) {
+            try {
+                DatagramPacket packet = new DatagramPacket( buf, buf.length );
+                socket.receive( packet );
+                String message = new String( packet.getData( ), 0,
+                                             packet.getLength( ),
+                                             StandardCharsets.UTF_8 );
+                if ( !message.startsWith( HELLO ) )
+                    continue;
+                String peer = message.substring( HELLO.length( ) ).trim( );
+                if ( !peer.equals( self ) )
+                    heard.put( peer, System.currentTimeMillis( ) );
+            } catch ( IOException e ) {
+                // closed, or a bad packet
+            }
+        }
+    }
+}
@@ -1,13 +1,17 @@
 package Mobile;
 import java.io.*;
+import java.lang.management.*;
 import java.net.*;
 import java.rmi.*;
 import java.rmi.server.*;
 import java.rmi.registry.*;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Mobile.Place is the our mobile-agent execution platform that accepts an
@@ -16,9 +20,28 @@ import java.util.Map;
  *
  * @author  Karan Chopra
  */
-public class Place extends UnicastRemoteObject implements PlaceInterface {
+public class Place implements PlaceInterface {
     private AgentLoader loader = null;  // a loader to define a new agent class
     private int agentSequencer = 0;     // a sequencer to give a unique agentId
+    private Mailbox mailbox = null;     // topics to exchange agent messages
+    private PlaceStats stats = null;    // counters reported by getStats( )
+    private ResourceMonitor monitor = null; // accounts agent resource usage
+    private ParallelExecutor executor = null; // runs agents' parallel work
+    private SpanLog spans = null;       // trace spans of visiting agents
+    private PlaceStore store = null;    // data agents leave on this Place
+    private int port = 0;               // the registry port, once started
+    private PeerDirectory peers = null; // other Places known, once started
+    private DirectEndpoint endpoint = null; // the direct transport, if used
+    private static final int HOP_MEMORY = 4096; // hop ids remembered
+    // the latest hops received, each completed with whether it was accepted,
+    // to drop retried duplicates
+    private final Map<Long, CompletableFuture<Boolean>> acceptedHops =
+            Collections.synchronizedMap(new LinkedHashMap<Long, CompletableFuture<Boolean>>() {
+                protected boolean removeEldestEntry(
+                        Map.Entry<Long, CompletableFuture<Boolean>> eldest) {
+                    return size() > HOP_MEMORY;
+                }
+            });
     //to store agent with key and their message
     private static Map<String, Map<String, String>> messageMap = new HashMap<>();
     //to store agent messages to pass to agent object
@@ -28,29 +51,119 @@ public class Place extends UnicastRemoteObject implements PlaceInterface {
      * is used to define a new agent class coming from remotely.
      */
     public Place( ) throws RemoteException {
-        super( );
+        this( 0 );
+    }
+
+    /**
+     * This constructor instantiates a Mobile.Place for a given port, whose
+     * store file and trace dump, if any, are named after the port.
+     *
+     * @param port the port the Place will listen to, or 0 if none.
+     */
+    public Place( int port ) throws RemoteException {
+        this.port = port;
         loader = new AgentLoader( );
+        mailbox = new Mailbox( );
+        stats = new PlaceStats( );
+        monitor = new ResourceMonitor( stats );
+        executor = new ParallelExecutor( monitor, stats );
+        spans = new SpanLog( placeFile( "Mobile.trace.dump", port ) );
+        store = new PlaceStore( stats, placeFile( "Mobile.store.file", port ) );
+    }
+
+    /**
+     * placeFile( ) returns the file named by a given system property, with
+     * ".<port>" appended for a Place on a port, or null if the property is
+     * not set.
+     */
+    private static File placeFile( String property, int port ) {
+        String name = System.getProperty( property );
+        if ( name == null )
+            return null;
+        return new File( ( port == 0 ) ? name : name + "." + port );
+    }
+
+    /**
+     * getMailbox( ) returns the mailbox that agents running on this Place
+     * use to exchange messages.
+     *
+     * @return this Place's mailbox.
+     */
+    public Mailbox getMailbox( ) {
+        return mailbox;
+    }
+
+    /**
+     * getMonitor( ) returns the monitor that accounts and limits the
+     * resources consumed by agents running on this Place.
+     *
+     * @return this Place's resource monitor.
+     */
+    public ResourceMonitor getMonitor( ) {
+        return monitor;
+    }
+
+    /**
+     * stats( ) returns the counters of this Place for local updates.
+     *
+     * @return this Place's statistics.
+     */
+    PlaceStats stats( ) {
+        return stats;
+    }
+
+    /**
+     * getExecutor( ) returns the pool that runs the parallel work of agents
+     * on this Place.
+     *
+     * @return this Place's parallel executor.
+     */
+    public ParallelExecutor getExecutor( ) {
+        return executor;
+    }
+
+    /**
+     * getStore( ) returns the key-value store shared by the agents running
+     * on this Place.
+     *
+     * @return this Place's store.
+     */
+    public PlaceStore getStore( ) {
+        return store;
+    }
+
+    /**
+     * getSpanLog( ) returns the trace spans recorded on this Place.
+     *
+     * @return this Place's span log.
+     */
+    public SpanLog getSpanLog( ) {
+        return spans;
     }
 
     /**
      * deserialize( ) deserializes a given byte array into a new agent.
      *
      * @param buf a byte array to be deserialized into a new Agent object.
+     * @param classloader the loader of the agent's class version.
      * @return a deserialized Agent object
      */
-    private Agent deserialize( byte[] buf )
+    private Agent deserialize( byte[] buf, ClassLoader classloader )
             throws IOException, ClassNotFoundException {
         // converts buf into an input stream
         ByteArrayInputStream in = new ByteArrayInputStream( buf );
 
         // AgentInputStream identify a new agent class and deserialize
         // a ByteArrayInputStream into a new object
-        AgentInputStream input = new AgentInputStream( in, loader );
+        AgentInputStream input = new AgentInputStream( in, classloader );
         return ( Agent )input.readObject();
     }
     /**
      * transfer( ) accepts an incoming agent and launches it as an independent
-     * thread.
+     * thread. An agent whose hop was accepted already, and is retried by a
+     * sender that missed the answer, is not launched again; a retry that
+     * arrives while the first attempt is still running waits for its
+     * outcome.
      *
      * @param classname The class name of an agent to be transferred.
      * @param bytecode  The byte code of  an agent to be transferred.
@@ -60,13 +173,32 @@ public class Place extends UnicastRemoteObject implements PlaceInterface {
     public boolean transfer( String classname, byte[] bytecode, byte[] entity )
             throws RemoteException {
         // Implement by yourself.
+        final long received = System.nanoTime();
+        CompletableFuture<Boolean> hop = null;   // the outcome of this hop
+        long hopId = 0;
+        boolean accepted = false;
         try {
             // Register the agent's class
             //System.out.println(classname);
             //System.out.println(bytecode);
-            loader.loadClass(classname, bytecode);
-            // Deserialize the agent
-            Agent agent = deserialize(entity);
+            Class agentClass = loader.loadClass(classname, bytecode);
+            if (agentClass == null)
+                throw new ClassNotFoundException(classname);
+            long defined = System.nanoTime();
+            // Deserialize the agent with the version of its own byte code
+            Agent agent = deserialize(entity, agentClass.getClassLoader());
+            long deserialized = System.nanoTime();
+            // Accept each hop only once, answering a retry as the first attempt
+            hopId = agent.getHopId();
+            if (hopId != 0) {
+                CompletableFuture<Boolean> first = acceptedHops.putIfAbsent(
+                        hopId, hop = new CompletableFuture<Boolean>());
+                if (first != null) {
+                    hop = null;
+                    stats.increment("hop.duplicates");
+                    return first.get();
+                }
+            }
             // Set the agent's identifier if it hasn't been set yet
             String hostName = InetAddress.getLocalHost().getHostName();
             String hostAddress = InetAddress.getLocalHost( ).getHostAddress( );
@@ -79,6 +211,7 @@ public class Place extends UnicastRemoteObject implements PlaceInterface {
                         + String.valueOf(agentSequencer);
                 int agentId = Integer.parseInt(newHostAddress);
                 agent.setId(agentId);
+                agent.setHome((port == 0) ? hostName : hostName + ":" + port);
             }
             //get the "messageListForAgent" from agentObj
             List<String> messageListForAgent = getMessagesFromPreviousAgents(agent.keyToKeyMessage , hostName);
@@ -88,18 +221,139 @@ public class Place extends UnicastRemoteObject implements PlaceInterface {
             //writing
             depositMyMessage(agent.keyToKeyMessage, "(" + String.valueOf(agent.getId()) + ") =====>> " +
                     agent.pingToNextAgent + " <<=====", hostName);
+            // Start a trace upon injection, and span this arrival
+            TraceContext trace = agent.getTrace();
+            if (trace == null)
+                trace = new TraceContext(SpanLog.newId(), 0);
+            final long traceId = trace.getTraceId();
+            final long receiveSpan = SpanLog.newId();
+            final int id = agent.getId();
+            spans.record(traceId, SpanLog.newId(), receiveSpan, "class-define", id,
+                    received, defined);
+            spans.record(traceId, SpanLog.newId(), receiveSpan, "deserialize", id,
+                    defined, deserialized);
+            final long runSpan = SpanLog.newId();
+            agent.setTrace(trace.child(runSpan));
+
             // Create a new thread with the agent and start it
-            Thread thread = new Thread(agent);
+            final Agent running = agent;
+            running.setPlace(this);
+            final long dispatched = System.nanoTime();
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    long started = System.nanoTime();
+                    spans.record(traceId, SpanLog.newId(), receiveSpan, "dispatch", id,
+                            dispatched, started);
+                    monitor.register(running);
+                    try {
+                        running.run();
+                    } finally {
+                        // drop the callbacks of an agent that left or ended
+                        mailbox.unsubscribeAll(running);
+                        monitor.unregister(running);
+                        spans.record(traceId, runSpan, receiveSpan, "run", id,
+                                started, System.nanoTime());
+                    }
+                }
+            });
             thread.start();
+            accepted = true;
+            stats.increment("agents.accepted");
+            spans.record(traceId, receiveSpan, trace.getParentSpanId(), "receive", id,
+                    received, System.nanoTime());
             return true;
         } catch (Exception e) {
             e.printStackTrace();
+            stats.increment("agents.rejected");
             return false;
+        } finally {
+            if (hop != null) {
+                // let a retry try again if this attempt failed
+                if (!accepted)
+                    acceptedHops.remove(hopId, hop);
+                hop.complete(accepted);
+            }
+        }
+    }
+    /**
+     * deliver( ) publishes a message forwarded from another Place to a
+     * topic of this Place's mailbox.
+     *
+     * @param topic   the topic to publish to.
+     * @param message the message to publish.
+     * @return true if the message was queued, otherwise false.
+     */
+    public boolean deliver( String topic, String message )
+            throws RemoteException {
+        return mailbox.publish(topic, message);
+    }
+    /**
+     * getStats( ) returns the counters of this Place, including the CPU time,
+     * allocated bytes, and wall time consumed by finished agents per class,
+     * the number of agents running now, the agent class versions loaded, and
+     * the hits, misses, and size of the store, and the threads, heap, and GC
+     * activity of this JVM.
+     *
+     * @return a map from counter names to their values.
+     */
+    public Map<String, Long> getStats( ) throws RemoteException {
+        Map<String, Long> snapshot = stats.snapshot( );
+        snapshot.put("agents.running", (long) monitor.running( ));
+        snapshot.put("loader.versions", (long) loader.versions( ));
+        snapshot.put("store.size", (long) store.size( ));
+        // gauges of this JVM
+        snapshot.put("jvm.threads",
+                (long) ManagementFactory.getThreadMXBean( ).getThreadCount( ));
+        snapshot.put("jvm.heapUsed", ManagementFactory.getMemoryMXBean( )
+                .getHeapMemoryUsage( ).getUsed( ));
+        long gcCount = 0, gcMillis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans( )) {
+            gcCount += Math.max(gc.getCollectionCount( ), 0);
+            gcMillis += Math.max(gc.getCollectionTime( ), 0);
         }
+        snapshot.put("jvm.gcCount", gcCount);
+        snapshot.put("jvm.gcMillis", gcMillis);
+        snapshot.put("loader.defined", loader.getDefined( ));
+        snapshot.put("loader.reclaimed", loader.getReclaimed( ));
+        return snapshot;
+    }
+    /**
+     * resume( ) wakes up an agent suspended on this Place for exceeding its
+     * quota.
+     *
+     * @param agentId the identifier of the agent to resume.
+     * @return true if a suspended agent was found, otherwise false.
+     */
+    public boolean resume( int agentId ) throws RemoteException {
+        return monitor.resume(agentId);
+    }
+    /**
+     * getSpans( ) returns the recorded spans of a given trace, formatted as
+     * by SpanLog.Span.toString( ).
+     *
+     * @param traceId the trace identifier, or 0 for all traces.
+     * @return the spans in start order.
+     */
+    public List<String> getSpans( long traceId ) throws RemoteException {
+        List<String> lines = new ArrayList<>();
+        for (SpanLog.Span span : spans.query(traceId))
+            lines.add(span.toString());
+        return lines;
+    }
+    /**
+     * getPeers( ) returns the addresses of the other Places this Place knows
+     * from its seed list or from multicast discovery.
+     *
+     * @return a list of "host:port" addresses.
+     */
+    public List<String> getPeers( ) throws RemoteException {
+        return (peers == null) ? new ArrayList<String>() : peers.peers();
     }
     /**
      * main( ) starts an RMI registry in local, instantiates a Mobile.Place
-     * agent execution platform, and registers it into the registry.
+     * agent execution platform, and registers it into the registry. With
+     * -DMobile.transport=direct, the Place listens on the port itself and no
+     * registry is started. The startup time is printed once ready.
      *
      * @param args receives a port, (i.e., 5001-65535).
      */
@@ -109,20 +363,50 @@ public class Place extends UnicastRemoteObject implements PlaceInterface {
             System.err.println("Usage: java Place <port>");
             System.exit(1);
         }
+        long begin = System.nanoTime();
         try {
             int port = Integer.parseInt(args[0]);
-            // Start the RMI registry
-            startRegistry(port);
-            // Instantiate the Place object
-            Place place = new Place();
-            // Bind the Place object to the registry
-            String url = "rmi://localhost:" + port + "/place";
-            Naming.rebind(url, place);
-            System.out.println("Place is ready to accept agents on port " + port);
+            start(port);
+            // report the startup time, also read by Benchmark startup
+            long millis = (System.nanoTime() - begin) / 1000000;
+            long sinceJvm = System.currentTimeMillis()
+                    - ManagementFactory.getRuntimeMXBean().getStartTime();
+            System.out.println("Place is ready to accept agents on port " + port
+                    + (PlaceConnector.DIRECT ? " (direct)" : "") + " in "
+                    + millis + " ms, " + sinceJvm + " ms since JVM start");
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
+    /**
+     * start( ) instantiates a Mobile.Place listening on a given port. With
+     * the direct transport, the Place serves its own DirectEndpoint on the
+     * port and never touches RMI; otherwise it exports the Place over RMI,
+     * starts an RMI registry on the port unless one is running, and
+     * registers the Place into it. start( ) lets a program run
+     * several Places in one JVM on different ports.
+     *
+     * @param port the port to which the Place should listen.
+     * @return the started Place.
+     */
+    public static Place start( int port ) throws Exception {
+        // Instantiate the Place object
+        Place place = new Place(port);
+        place.peers = new PeerDirectory(
+                InetAddress.getLocalHost().getHostName(), port);
+        if (PlaceConnector.DIRECT) {
+            // Serve calls on the port itself, without RMI
+            place.endpoint = new DirectEndpoint(place, port);
+            return place;
+        }
+        // Export the Place over RMI and start the RMI registry
+        UnicastRemoteObject.exportObject(place, 0);
+        startRegistry(port);
+        // Bind the Place object to the registry
+        String url = "rmi://localhost:" + port + "/place";
+        Naming.rebind(url, place);
+        return place;
+    }
     /**
      * startRegistry( ) starts an RMI registry process in local to this Place.
      * @param port the port to which this RMI should listen.
@@ -0,0 +1,187 @@
+package Mobile;
+
+import java.io.IOException;
+import java.net.*;
+import java.rmi.Naming;
+import java.rmi.server.RMISocketFactory;
+import java.util.concurrent.*;
+
+/**
+ * Mobile.PlaceConnector finds remote Mobile.Place objects and calls them
+ * within the timeouts of a Mobile.HopPolicy. Stubs are cached per URL and
+ * dropped upon a failure, so that the next attempt resolves the Place again
+ * over a fresh connection. Calls run on a daemon thread so that a caller
+ * never blocks beyond its call timeout on a dead host.
+ *
+ * If the system property "Mobile.transport" is "direct", Places are called
+ * through their Mobile.DirectEndpoint on the same port instead of being
+ * looked up in an RMI registry.
+ */
+public class PlaceConnector {
+    // true to call Places without an RMI registry
+    public static final boolean DIRECT =
+        "direct".equals( System.getProperty( "Mobile.transport" ) );
+    private static final HopPolicy DEFAULT_POLICY = new HopPolicy( );
+
+    // stubs of the places looked up so far
+    private static final ConcurrentHashMap<String, PlaceInterface> stubs =
+        new ConcurrentHashMap<String, PlaceInterface>( );
+    // connect and read timeouts of the calling thread
+    private static final ThreadLocal<HopPolicy> policies =
+        new ThreadLocal<HopPolicy>( );
+    // threads to make remote calls on
+    private static final ExecutorService callers =
+        Executors.newCachedThreadPool( new ThreadFactory( ) {
+                public Thread newThread( Runnable r ) {
+                    Thread thread = new Thread( r, "place-caller" );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+
+    static {
+        // apply the calling policy to every RMI connection of this JVM
+        try {
+            RMISocketFactory.setSocketFactory( new TimeoutSocketFactory( ) );
+        } catch ( IOException e ) {
+            // another factory has been installed already
+        }
+    }
+
+    /**
+     * TimeoutSocketFactory opens RMI connections with the connect and read
+     * timeouts of the calling thread's policy.
+     */
+    private static class TimeoutSocketFactory extends RMISocketFactory {
+        public Socket createSocket( String host, int port ) throws IOException {
+            HopPolicy policy = policies.get( );
+            if ( policy == null )
+                return getDefaultSocketFactory( ).createSocket( host, port );
+            Socket socket = new Socket( );
+            socket.connect( new InetSocketAddress( host, port ),
+                            policy.getConnectTimeout( ) );
+            socket.setSoTimeout( policy.getCallTimeout( ) );
+            socket.setTcpNoDelay( true );
+            return socket;
+        }
+
+        public ServerSocket createServerSocket( int port ) throws IOException {
+            return getDefaultSocketFactory( ).createServerSocket( port );
+        }
+    }
+
+    /**
+     * A Call is a remote invocation on a Place.
+     */
+    public interface Call<T> {
+        T call( PlaceInterface place ) throws Exception;
+    }
+
+    /**
+     * call( ) looks up the Place on a given host and port and invokes a
+     * given call on it, within the timeouts of a given policy. The cached
+     * stub is dropped if the call fails.
+     *
+     * @param hostname the IP name of the Place's host, optionally followed
+     *                 by ":port" to override the port.
+     * @param port     the Place's port.
+     * @param policy   the timeouts to apply.
+     * @param call     the invocation to make.
+     * @return the result of the call.
+     */
+    public static <T> T call( String hostname, int port, final HopPolicy policy,
+                              final Call<T> call ) throws Exception {
+        int colon = hostname.lastIndexOf( ':' );
+        if ( colon > 0 && colon == hostname.indexOf( ':' ) ) {
+            port = Integer.parseInt( hostname.substring( colon + 1 ) );
+            hostname = hostname.substring( 0, colon );
+        }
+        final String url = "rmi://" + hostname + ":" + port + "/place";
+        final String host = hostname;
+        final int target = port;
+        Future<T> future = callers.submit( new Callable<T>( ) {
+                public T call( ) throws Exception {
+                    policies.set( policy );
+                    try {
+                        return call.call( lookup( url, host, target ) );
+                    } finally {
+                        policies.remove( );
+                    }
+                }
+            } );
+        try {
+            return future.get( policy.getConnectTimeout( ) +
+                               policy.getCallTimeout( ),
+                               TimeUnit.MILLISECONDS );
+        } catch ( TimeoutException e ) {
+            future.cancel( true );
+            evict( url );
+            throw new TimeoutException( "no answer from " + url );
+        } catch ( ExecutionException e ) {
+            evict( url );
+            Throwable cause = e.getCause( );
+            throw ( cause instanceof Exception ) ? ( Exception )cause : e;
+        }
+    }
+
+    /**
+     * neverReached( ) tells whether a failed call provably never reached
+     * the Place, because no connection to it could be made or it is not
+     * registered. Other failures, such as timeouts, may have come after
+     * the Place ran the call.
+     *
+     * @param failure the failure of call( ), or null.
+     * @return true if the call never reached the Place.
+     */
+    public static boolean neverReached( Throwable failure ) {
+        if ( failure == null )
+            return true;
+        return failure instanceof java.rmi.ConnectException ||
+            failure instanceof java.rmi.ConnectIOException ||
+            failure instanceof java.rmi.UnknownHostException ||
+            failure instanceof java.rmi.NotBoundException ||
+            failure instanceof ConnectException ||
+            failure instanceof UnknownHostException ||
+            failure instanceof NoRouteToHostException;
+    }
+
+    /**
+     * currentPolicy( ) returns the policy of the call running on this
+     * thread, or the default policy.
+     */
+    static HopPolicy currentPolicy( ) {
+        HopPolicy policy = policies.get( );
+        return ( policy == null ) ? DEFAULT_POLICY : policy;
+    }
+
+    /**
+     * evict( ) drops the cached stub of a given URL, and closes the
+     * connections of a direct one.
+     */
+    private static void evict( String url ) {
+        PlaceInterface place = stubs.remove( url );
+        if ( place != null )
+            DirectPlaceClient.close( place );
+    }
+
+    /**
+     * lookup( ) returns the cached stub of a given URL, looking it up in
+     * the RMI registry upon the first use, or connecting to the Place's
+     * direct endpoint in the direct transport.
+     */
+    private static PlaceInterface lookup( String url, String host, int port )
+        throws Exception {
+        PlaceInterface place = stubs.get( url );
+        if ( place == null ) {
+            place = DIRECT ? DirectPlaceClient.connect( host, port ) :
+                ( PlaceInterface )Naming.lookup( url );
+            PlaceInterface cached = stubs.putIfAbsent( url, place );
+            if ( cached != null ) {
+                // another caller got there first
+                DirectPlaceClient.close( place );
+                place = cached;
+            }
+        }
+        return place;
+    }
+}
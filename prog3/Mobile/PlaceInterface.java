@@ -1,6 +1,8 @@
 package Mobile;
 
 import java.rmi.*;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Mobile.PlaceInterface defines Place's RMI method that will be called from
@@ -22,4 +24,51 @@ public interface PlaceInterface extends Remote {
      */
     public boolean transfer( String classname, byte[] bytecode,
 			     byte[] entity ) throws RemoteException;
+
+    /**
+     * deliver( ) publishes a message forwarded from another Place to a
+     * topic of this Place's mailbox.
+     *
+     * @param topic   the topic to publish to.
+     * @param message the message to publish.
+     * @return true if the message was queued, otherwise false.
+     */
+    public boolean deliver( String topic, String message )
+	throws RemoteException;
+
+    /**
+     * getStats( ) returns the counters of this Place, such as the number of
+     * accepted agents and the resources they consumed.
+     *
+     * @return a map from counter names to their values.
+     */
+    public Map<String, Long> getStats( ) throws RemoteException;
+
+    /**
+     * resume( ) wakes up an agent suspended on this Place for exceeding its
+     * quota, and lets its usage count from zero.
+     *
+     * @param agentId the identifier of the agent to resume.
+     * @return true if a suspended agent was found, otherwise false.
+     */
+    public boolean resume( int agentId ) throws RemoteException;
+
+    /**
+     * getSpans( ) returns the trace spans recorded on this Place, one
+     * tab-separated line per span: trace, span, and parent identifiers in
+     * hex, span name, agent identifier, start in microseconds since the
+     * epoch, and duration in nanoseconds.
+     *
+     * @param traceId the trace identifier, or 0 for all traces.
+     * @return the spans in start order.
+     */
+    public List<String> getSpans( long traceId ) throws RemoteException;
+
+    /**
+     * getPeers( ) returns the addresses of the other Places this Place knows
+     * from its seed list or from multicast discovery.
+     *
+     * @return a list of "host:port" addresses.
+     */
+    public List<String> getPeers( ) throws RemoteException;
 }
\ No newline at end of file
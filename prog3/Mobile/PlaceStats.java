@@ -0,0 +1,69 @@
+package Mobile;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Mobile.PlaceStats keeps the named counters that a Mobile.Place reports
+ * through getStats( ), such as the number of accepted agents and the
+ * resources consumed by agents of each class.
+ */
+public class PlaceStats {
+    // counters created so far
+    private final ConcurrentHashMap<String, LongAdder> counters =
+        new ConcurrentHashMap<String, LongAdder>( );
+
+    /**
+     * add( ) adds a given delta to a counter, creating it upon the first use.
+     *
+     * @param name  the counter name.
+     * @param delta the value to add.
+     */
+    public void add( String name, long delta ) {
+        LongAdder counter = counters.get( name );
+        if ( counter == null ) {
+            LongAdder created = new LongAdder( );
+            counter = counters.putIfAbsent( name, created );
+            if ( counter == null )
+                counter = created;
+        }
+        counter.add( delta );
+    }
+
+    /**
+     * increment( ) adds 1 to a counter.
+     *
+     * @param name the counter name.
+     */
+    public void increment( String name ) {
+        add( name, 1 );
+    }
+
+    /**
+     * get( ) returns the current value of a counter.
+     *
+     * @param name the counter name.
+     * @return the counter value, or 0 if it was never used.
+     */
+    public long get( String name ) {
+        LongAdder counter = counters.get( name );
+        return ( counter == null ) ? 0 : counter.sum( );
+    }
+
+    /**
+     * snapshot( ) copies all counters in name order.
+     *
+     * @return a map from counter names to their values.
+     */
+    public TreeMap<String, Long> snapshot( ) {
+        TreeMap<String, Long> copy = new TreeMap<String, Long>( );
+        for ( Map.Entry<String, LongAdder> e : counters.entrySet( ) )
+            copy.put( e.getKey( ), e.getValue( ).sum( ) );
+        return copy;
+    }
+
+    public String toString( ) {
+        return snapshot( ).toString( );
+    }
+}
@@ -0,0 +1,493 @@
+package Mobile;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Mobile.PlaceStore is a key-value store local to a Mobile.Place, where
+ * visiting agents leave and read structured data through
+ * Mobile.Agent.getStore( ). Keys are strings kept in order, so that agents
+ * can scan a range or a prefix of them. Values are longs, doubles, or
+ * strings; longs and doubles are stored unboxed and longs can be added to
+ * atomically. Each entry may expire after a time to live.
+ *
+ * The store is a lock-free skip list. If the system property
+ * "Mobile.store.file" names a file, a Place started on a port uses that
+ * name followed by ".<port>", so that the Places of one JVM keep separate
+ * files. The store is loaded from its file upon start
+ * and written back to it through a memory-mapped buffer by flush( ), every
+ * "Mobile.store.flushMillis" milliseconds, and when the Place's JVM exits.
+ * A flush writes a new file and renames it over the old one, so a crash
+ * leaves either the old or the new content; updates since the last flush
+ * are lost if the JVM is killed. A file that cannot be read is ignored and
+ * the store starts empty. Hits, misses, puts, and expirations are counted
+ * in the Place statistics.
+ */
+public class PlaceStore {
+    public static final long SWEEP_MILLIS = 1000; // to remove expired entries
+    public static final long FLUSH_MILLIS =       // to persist, if 0 only upon exit
+        Long.getLong( "Mobile.store.flushMillis", 10000 );
+
+    private static final byte LONG = 0, DOUBLE = 1, STRING = 2; // value types
+
+    private final ConcurrentSkipListMap<String, Entry> entries =
+        new ConcurrentSkipListMap<String, Entry>( );
+    private final PlaceStats stats;   // hit and miss counters
+    private final File file;          // where to persist, or null
+    private final ScheduledExecutorService sweeper;
+
+    /**
+     * An entry holds a value of one type and its expiration time.
+     */
+    private static class Entry {
+        final byte type;
+        final long bits;         // a long, or the bits of a double
+        final String text;       // a string
+        final long expiresAt;    // System.currentTimeMillis( ), 0 = never
+
+        Entry( byte type, long bits, String text, long expiresAt ) {
+            this.type = type;
+            this.bits = bits;
+            this.text = text;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean expired( long now ) {
+            return expiresAt != 0 && now >= expiresAt;
+        }
+
+        Object value( ) {
+            switch ( type ) {
+            case LONG:   return bits;
+            case DOUBLE: return Double.longBitsToDouble( bits );
+            default:     return text;
+            }
+        }
+    }
+
+    /**
+     * This constructor creates a store, loads it from the file named by
+     * "Mobile.store.file" if any, and starts removing expired entries.
+     *
+     * @param stats the Place statistics.
+     */
+    public PlaceStore( PlaceStats stats ) {
+        this( stats, ( System.getProperty( "Mobile.store.file" ) == null ) ?
+              null : new File( System.getProperty( "Mobile.store.file" ) ) );
+    }
+
+    /**
+     * This constructor creates a store, loads it from a given file if any,
+     * and starts removing expired entries.
+     *
+     * @param stats the Place statistics.
+     * @param file  the file to persist the store to, or null.
+     */
+    public PlaceStore( PlaceStats stats, File file ) {
+        this.stats = stats;
+        this.file = file;
+        if ( file != null ) {
+            try {
+                if ( file.length( ) > 0 )
+                    load( );
+            } catch ( IOException | RuntimeException e ) {
+                // a damaged file must not keep the Place from starting
+                entries.clear( );
+                System.err.println( "store file " + file + " ignored, " +
+                                    "starting empty: " + e );
+            }
+            Runtime.getRuntime( ).addShutdownHook( new Thread( ) {
+                    public void run( ) {
+                        try {
+                            flush( );
+                        } catch ( IOException e ) {
+                            e.printStackTrace( );
+                        }
+                    }
+                } );
+        }
+
+        sweeper = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory( ) {
+                public Thread newThread( Runnable r ) {
+                    Thread thread = new Thread( r, "store-sweeper" );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+        sweeper.scheduleWithFixedDelay( new Runnable( ) {
+                public void run( ) {
+                    sweep( );
+                }
+            }, SWEEP_MILLIS, SWEEP_MILLIS, TimeUnit.MILLISECONDS );
+        if ( file != null && FLUSH_MILLIS > 0 )
+            sweeper.scheduleWithFixedDelay( new Runnable( ) {
+                    public void run( ) {
+                        try {
+                            flush( );
+                        } catch ( IOException e ) {
+                            System.err.println( "store flush failed: " + e );
+                        }
+                    }
+                }, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * putLong( ) stores a long that never expires.
+     *
+     * @param key   the key.
+     * @param value the value.
+     */
+    public void putLong( String key, long value ) {
+        putLong( key, value, 0 );
+    }
+
+    /**
+     * putLong( ) stores a long that expires after a given time.
+     *
+     * @param key   the key.
+     * @param value the value.
+     * @param ttl   the time to live in milliseconds, or 0 for ever.
+     */
+    public void putLong( String key, long value, long ttl ) {
+        put( key, new Entry( LONG, value, null, expiresAt( ttl ) ) );
+    }
+
+    /**
+     * getLong( ) returns a stored long.
+     *
+     * @param key      the key.
+     * @param absent   the value to return if the key is not stored.
+     * @return the stored value, or absent.
+     */
+    public long getLong( String key, long absent ) {
+        Entry entry = get( key, LONG );
+        return ( entry == null ) ? absent : entry.bits;
+    }
+
+    /**
+     * addLong( ) atomically adds a delta to a stored long, storing the
+     * delta if the key is not stored. The expiration time is kept.
+     *
+     * @param key   the key.
+     * @param delta the value to add.
+     * @return the new value.
+     */
+    public long addLong( String key, final long delta ) {
+        final long now = System.currentTimeMillis( );
+        Entry entry = entries.compute( key, ( k, old ) -> {
+                if ( old == null || old.expired( now ) )
+                    return new Entry( LONG, delta, null, 0 );
+                check( k, old, LONG );
+                return new Entry( LONG, old.bits + delta, null, old.expiresAt );
+            } );
+        stats.increment( "store.puts" );
+        return entry.bits;
+    }
+
+    /**
+     * putDouble( ) stores a double that never expires.
+     *
+     * @param key   the key.
+     * @param value the value.
+     */
+    public void putDouble( String key, double value ) {
+        putDouble( key, value, 0 );
+    }
+
+    /**
+     * putDouble( ) stores a double that expires after a given time.
+     *
+     * @param key   the key.
+     * @param value the value.
+     * @param ttl   the time to live in milliseconds, or 0 for ever.
+     */
+    public void putDouble( String key, double value, long ttl ) {
+        put( key, new Entry( DOUBLE, Double.doubleToRawLongBits( value ), null,
+                             expiresAt( ttl ) ) );
+    }
+
+    /**
+     * getDouble( ) returns a stored double.
+     *
+     * @param key    the key.
+     * @param absent the value to return if the key is not stored.
+     * @return the stored value, or absent.
+     */
+    public double getDouble( String key, double absent ) {
+        Entry entry = get( key, DOUBLE );
+        return ( entry == null ) ? absent : Double.longBitsToDouble( entry.bits );
+    }
+
+    /**
+     * putString( ) stores a string that never expires.
+     *
+     * @param key   the key.
+     * @param value the value.
+     */
+    public void putString( String key, String value ) {
+        putString( key, value, 0 );
+    }
+
+    /**
+     * putString( ) stores a string that expires after a given time.
+     *
+     * @param key   the key.
+     * @param value the value.
+     * @param ttl   the time to live in milliseconds, or 0 for ever.
+     */
+    public void putString( String key, String value, long ttl ) {
+        if ( value == null )
+            throw new NullPointerException( "value" );
+        put( key, new Entry( STRING, 0, value, expiresAt( ttl ) ) );
+    }
+
+    /**
+     * getString( ) returns a stored string.
+     *
+     * @param key the key.
+     * @return the stored value, or null if the key is not stored.
+     */
+    public String getString( String key ) {
+        Entry entry = get( key, STRING );
+        return ( entry == null ) ? null : entry.text;
+    }
+
+    /**
+     * contains( ) checks if a key is stored and has not expired.
+     *
+     * @param key the key.
+     * @return true if the key is stored, otherwise false.
+     */
+    public boolean contains( String key ) {
+        Entry entry = entries.get( key );
+        return entry != null && !entry.expired( System.currentTimeMillis( ) );
+    }
+
+    /**
+     * remove( ) removes a key.
+     *
+     * @param key the key.
+     * @return true if the key was stored, otherwise false.
+     */
+    public boolean remove( String key ) {
+        return entries.remove( key ) != null;
+    }
+
+    /**
+     * range( ) returns the entries whose keys are in [from, to), in key
+     * order. Longs and doubles are returned as Long and Double.
+     *
+     * @param from the lowest key, inclusive.
+     * @param to   the highest key, exclusive.
+     * @return a copy of the entries in range.
+     */
+    public SortedMap<String, Object> range( String from, String to ) {
+        return copy( entries.subMap( from, true, to, false ) );
+    }
+
+    /**
+     * prefix( ) returns the entries whose keys start with a given prefix,
+     * in key order.
+     *
+     * @param prefix the key prefix.
+     * @return a copy of the entries with the prefix.
+     */
+    public SortedMap<String, Object> prefix( String prefix ) {
+        long now = System.currentTimeMillis( );
+        TreeMap<String, Object> copy = new TreeMap<String, Object>( );
+        for ( Map.Entry<String, Entry> e : entries.tailMap( prefix ).entrySet( ) ) {
+            if ( !e.getKey( ).startsWith( prefix ) )
+                break;
+            if ( !e.getValue( ).expired( now ) )
+                copy.put( e.getKey( ), e.getValue( ).value( ) );
+        }
+        stats.increment( "store.scans" );
+        return copy;
+    }
+
+    /**
+     * size( ) returns the number of stored entries, including expired ones
+     * not swept yet.
+     */
+    public int size( ) {
+        return entries.size( );
+    }
+
+    /**
+     * flush( ) writes all live entries to the file named by
+     * "Mobile.store.file" through a memory-mapped buffer. The entries go to
+     * a temporary file first, which then replaces the file atomically.
+     */
+    public synchronized void flush( ) throws IOException {
+        if ( file == null )
+            return;
+        // encode the live entries first to size the mapping
+        long now = System.currentTimeMillis( );
+        List<byte[]> keys = new ArrayList<byte[]>( );
+        List<Entry> values = new ArrayList<Entry>( );
+        long size = 4;
+        for ( Map.Entry<String, Entry> e : entries.entrySet( ) ) {
+            if ( e.getValue( ).expired( now ) )
+                continue;
+            byte[] key = e.getKey( ).getBytes( StandardCharsets.UTF_8 );
+            keys.add( key );
+            values.add( e.getValue( ) );
+            size += 4 + key.length + 1 + 8 + 8;
+            if ( e.getValue( ).type == STRING )
+                size += 4 + e.getValue( ).text
+                    .getBytes( StandardCharsets.UTF_8 ).length;
+        }
+
+        File tmp = File.createTempFile( file.getName( ), ".tmp",
+                                        file.getAbsoluteFile( ).getParentFile( ) );
+        RandomAccessFile raf = new RandomAccessFile( tmp, "rw" );
+        boolean written = false;
+        try {
+            raf.setLength( size );
+            MappedByteBuffer buf = raf.getChannel( )
+                .map( FileChannel.MapMode.READ_WRITE, 0, size );
+            buf.putInt( keys.size( ) );
+            for ( int i = 0; i < keys.size( ); i++ ) {
+                Entry entry = values.get( i );
+                buf.putInt( keys.get( i ).length ).put( keys.get( i ) );
+                buf.put( entry.type ).putLong( entry.expiresAt );
+                if ( entry.type == STRING ) {
+                    byte[] text = entry.text.getBytes( StandardCharsets.UTF_8 );
+                    buf.putLong( 0 ).putInt( text.length ).put( text );
+                } else
+                    buf.putLong( entry.bits );
+            }
+            buf.force( );
+            written = true;
+        } finally {
+            raf.close( );
+            if ( !written )
+                tmp.delete( );
+        }
+        Files.move( tmp.toPath( ), file.toPath( ),
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING );
+    }
+
+    /**
+     * shutdown( ) stops removing expired entries.
+     */
+    public void shutdown( ) {
+        sweeper.shutdownNow( );
+    }
+
+    /**
+     * load( ) reads the entries written by flush( ), and throws an exception
+     * if the file is damaged.
+     */
+    private void load( ) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile( file, "r" );
+        try {
+            MappedByteBuffer buf = raf.getChannel( )
+                .map( FileChannel.MapMode.READ_ONLY, 0, raf.length( ) );
+            int count = buf.getInt( );
+            for ( int i = 0; i < count; i++ ) {
+                byte[] key = bytes( buf );
+                byte type = buf.get( );
+                if ( type != LONG && type != DOUBLE && type != STRING )
+                    throw new IOException( "bad value type " + type );
+                long expiresAt = buf.getLong( );
+                long bits = buf.getLong( );
+                String text = null;
+                if ( type == STRING )
+                    text = new String( bytes( buf ), StandardCharsets.UTF_8 );
+                entries.put( new String( key, StandardCharsets.UTF_8 ),
+                             new Entry( type, bits, text, expiresAt ) );
+            }
+        } finally {
+            raf.close( );
+        }
+    }
+
+    /**
+     * bytes( ) reads a byte array preceded by its length.
+     */
+    private static byte[] bytes( MappedByteBuffer buf ) throws IOException {
+        int length = buf.getInt( );
+        if ( length < 0 || length > buf.remaining( ) )
+            throw new IOException( "bad length " + length );
+        byte[] bytes = new byte[length];
+        buf.get( bytes );
+        return bytes;
+    }
+
+    /**
+     * put( ) stores an entry and counts it.
+     */
+    private void put( String key, Entry entry ) {
+        entries.put( key, entry );
+        stats.increment( "store.puts" );
+    }
+
+    /**
+     * get( ) returns a live entry of a given type, counting a hit or a miss.
+     */
+    private Entry get( String key, byte type ) {
+        Entry entry = entries.get( key );
+        if ( entry != null && entry.expired( System.currentTimeMillis( ) ) ) {
+            if ( entries.remove( key, entry ) )
+                stats.increment( "store.expired" );
+            entry = null;
+        }
+        if ( entry == null ) {
+            stats.increment( "store.misses" );
+            return null;
+        }
+        check( key, entry, type );
+        stats.increment( "store.hits" );
+        return entry;
+    }
+
+    /**
+     * copy( ) copies the live entries of a view of the store.
+     */
+    private SortedMap<String, Object> copy( Map<String, Entry> view ) {
+        long now = System.currentTimeMillis( );
+        TreeMap<String, Object> copy = new TreeMap<String, Object>( );
+        for ( Map.Entry<String, Entry> e : view.entrySet( ) )
+            if ( !e.getValue( ).expired( now ) )
+                copy.put( e.getKey( ), e.getValue( ).value( ) );
+        stats.increment( "store.scans" );
+        return copy;
+    }
+
+    /**
+     * sweep( ) removes the expired entries.
+     */
+    private void sweep( ) {
+        long now = System.currentTimeMillis( );
+        for ( Map.Entry<String, Entry> e : entries.entrySet( ) )
+            if ( e.getValue( ).expired( now ) &&
+                 entries.remove( e.getKey( ), e.getValue( ) ) )
+                stats.increment( "store.expired" );
+    }
+
+    /**
+     * check( ) verifies that an entry holds a value of a given type.
+     */
+    private static void check( String key, Entry entry, byte type ) {
+        if ( entry.type != type )
+            throw new ClassCastException( key + " holds a " +
+                                          entry.value( ).getClass( )
+                                          .getSimpleName( ) );
+    }
+
+    /**
+     * expiresAt( ) converts a time to live into an expiration time.
+     */
+    private static long expiresAt( long ttl ) {
+        return ( ttl <= 0 ) ? 0 : System.currentTimeMillis( ) + ttl;
+    }
+}
@@ -0,0 +1,17 @@
+package Mobile;
+
+/**
+ * Mobile.QuotaExceededException is thrown from Agent.checkQuota( ) to unwind
+ * an agent that exceeded its Mobile.AgentQuota and has been terminated or
+ * migrated away.
+ */
+public class QuotaExceededException extends RuntimeException {
+    /**
+     * This constructor creates an exception with a given message.
+     *
+     * @param message what happened to the agent.
+     */
+    public QuotaExceededException( String message ) {
+        super( message );
+    }
+}
@@ -0,0 +1,361 @@
+package Mobile;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Properties;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mobile.ResourceMonitor accounts the CPU time, allocated bytes, and wall
+ * time consumed by each agent running on a Mobile.Place, and enforces the
+ * Mobile.AgentQuota configured for its class. An agent that exceeds its
+ * quota is asked to suspend, migrate, or terminate at its next
+ * Agent.checkQuota( ); one that does not comply within a grace period is
+ * stopped by force. A suspended agent waits until it is resumed through the
+ * remote Place.resume( ), or terminates once the suspension deadline given
+ * in the system property "Mobile.suspendMillis" has passed.
+ *
+ * Quotas are read from system properties named "Mobile.quota.<classname>"
+ * in the AgentQuota.parse( ) format, or set through setQuota( ).
+ */
+public class ResourceMonitor {
+    public static final long SAMPLE_MILLIS = 100;  // sampling period
+    public static final long GRACE_MILLIS = 2000;  // time to comply
+    public static final long SUSPEND_MILLIS =      // time to be resumed
+        Long.getLong( "Mobile.suspendMillis", 60000 );
+    private static final String QUOTA_PREFIX = "Mobile.quota.";
+
+    private final PlaceStats stats;  // where the usage of finished agents goes
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean( );
+    private final boolean allocSupported; // getThreadAllocatedBytes( ) works
+    // quotas per agent class name
+    private final ConcurrentHashMap<String, AgentQuota> quotas =
+        new ConcurrentHashMap<String, AgentQuota>( );
+    // accounts of running agents
+    private final ConcurrentHashMap<Agent, Account> accounts =
+        new ConcurrentHashMap<Agent, Account>( );
+    private final ScheduledExecutorService sampler;
+
+    /**
+     * An account keeps the usage baseline of an agent thread and the state
+     * of quota enforcement.
+     */
+    private static class Account {
+        final Agent agent;
+        final Thread thread;
+        final String classname;
+        long cpuBase;          // thread CPU time upon the start
+        long allocBase;        // thread allocation upon the start
+        long wallBase;         // System.currentTimeMillis( ) upon the start
+        final AtomicLong chargedCpu = new AtomicLong( );   // by other threads
+        final AtomicLong chargedAlloc = new AtomicLong( ); // by other threads
+        // work in progress for the agent on other threads
+        final ConcurrentLinkedQueue<Work> work =
+            new ConcurrentLinkedQueue<Work>( );
+        volatile long flaggedAt = 0; // when the agent was asked to comply
+        boolean forced = false;          // stopped by force
+        volatile boolean suspended = false;
+
+        Account( Agent agent, Thread thread ) {
+            this.agent = agent;
+            this.thread = thread;
+            this.classname = agent.getClass( ).getName( );
+        }
+    }
+
+    /**
+     * A Work is a piece of an agent's work running on another thread, such
+     * as a pool worker, which is sampled along with the agent's own thread
+     * until it ends.
+     */
+    static class Work {
+        final Account account;
+        final Thread thread;
+        volatile long cpuBase;     // thread CPU time upon the start
+        volatile long allocBase;   // thread allocation upon the start
+
+        Work( Account account, Thread thread ) {
+            this.account = account;
+            this.thread = thread;
+        }
+    }
+
+    /**
+     * This constructor starts sampling agent accounts and reads the quotas
+     * given as system properties.
+     *
+     * @param stats the Place statistics to accumulate agent usage in.
+     */
+    public ResourceMonitor( PlaceStats stats ) {
+        this.stats = stats;
+        if ( threads.isThreadCpuTimeSupported( ) )
+            threads.setThreadCpuTimeEnabled( true );
+        allocSupported = ( threads instanceof com.sun.management.ThreadMXBean )
+            && ( ( com.sun.management.ThreadMXBean )threads )
+            .isThreadAllocatedMemorySupported( );
+
+        Properties props = System.getProperties( );
+        for ( String key : props.stringPropertyNames( ) )
+            if ( key.startsWith( QUOTA_PREFIX ) )
+                setQuota( key.substring( QUOTA_PREFIX.length( ) ),
+                          AgentQuota.parse( props.getProperty( key ) ) );
+
+        sampler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory( ) {
+                public Thread newThread( Runnable r ) {
+                    Thread thread = new Thread( r, "resource-monitor" );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+        sampler.scheduleWithFixedDelay( new Runnable( ) {
+                public void run( ) {
+                    sample( );
+                }
+            }, SAMPLE_MILLIS, SAMPLE_MILLIS, TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * setQuota( ) sets the quota of a given agent class.
+     *
+     * @param classname the name of an agent class.
+     * @param quota     the quota, or null to remove it.
+     */
+    public void setQuota( String classname, AgentQuota quota ) {
+        if ( quota == null )
+            quotas.remove( classname );
+        else
+            quotas.put( classname, quota );
+    }
+
+    /**
+     * register( ) starts accounting an agent on the calling thread.
+     *
+     * @param agent the agent that starts running.
+     */
+    public void register( Agent agent ) {
+        Account account = new Account( agent, Thread.currentThread( ) );
+        rebase( account );
+        accounts.put( agent, account );
+    }
+
+    /**
+     * unregister( ) stops accounting an agent and adds its usage to the
+     * Place statistics.
+     *
+     * @param agent the agent that stopped running.
+     */
+    public void unregister( Agent agent ) {
+        Account account = accounts.remove( agent );
+        if ( account == null )
+            return;
+        long cpu = cpu( account ), alloc = alloc( account );
+        long wall = System.currentTimeMillis( ) - account.wallBase;
+        stats.increment( "agents.finished" );
+        stats.add( "agents.cpuNanos", cpu );
+        stats.add( "agents.allocatedBytes", alloc );
+        stats.add( "agents.wallMillis", wall );
+        String prefix = "agent." + account.classname + ".";
+        stats.increment( prefix + "finished" );
+        stats.add( prefix + "cpuNanos", cpu );
+        stats.add( prefix + "allocatedBytes", alloc );
+        stats.add( prefix + "wallMillis", wall );
+    }
+
+    /**
+     * startWork( ) starts accounting work done for an agent on the calling
+     * thread, so that its usage counts against the agent's quota while it
+     * runs.
+     *
+     * @param agent the agent the work is done for.
+     * @return the work to pass to endWork( ), or null if the agent is not
+     *         being accounted.
+     */
+    Work startWork( Agent agent ) {
+        Account account = accounts.get( agent );
+        if ( account == null )
+            return null;
+        Work work = new Work( account, Thread.currentThread( ) );
+        work.cpuBase = threadCpu( work.thread );
+        work.allocBase = threadAlloc( work.thread );
+        account.work.add( work );
+        return work;
+    }
+
+    /**
+     * endWork( ) charges the usage of finished work to its agent.
+     *
+     * @param work the work returned by startWork( ), or null.
+     */
+    void endWork( Work work ) {
+        if ( work == null )
+            return;
+        // stop sampling it first, so that it is never counted twice
+        work.account.work.remove( work );
+        work.account.chargedCpu.addAndGet( threadCpu( work.thread ) -
+                                           work.cpuBase );
+        work.account.chargedAlloc.addAndGet( threadAlloc( work.thread ) -
+                                             work.allocBase );
+    }
+
+    /**
+     * running( ) returns the number of agents being accounted.
+     */
+    public int running( ) {
+        return accounts.size( );
+    }
+
+    /**
+     * suspend( ) blocks an agent that exceeded a SUSPEND quota until
+     * resume( ) is called for it, after which its usage counts from zero,
+     * or until SUSPEND_MILLIS have passed.
+     *
+     * @param agent the agent to suspend.
+     * @return true if the agent was resumed, false if the deadline passed.
+     */
+    public boolean suspend( Agent agent ) throws InterruptedException {
+        Account account = accounts.get( agent );
+        if ( account == null )
+            return true;
+        synchronized ( account ) {
+            account.suspended = true;
+            stats.increment( "quota.suspended" );
+            long deadline = System.currentTimeMillis( ) + SUSPEND_MILLIS;
+            long remaining;
+            while ( account.suspended &&
+                    ( remaining = deadline - System.currentTimeMillis( ) ) > 0 )
+                account.wait( remaining );
+            if ( !account.suspended )
+                return true;
+            // not resumed in time; the agent terminates
+            account.suspended = false;
+            stats.increment( "quota.suspendExpired" );
+            return false;
+        }
+    }
+
+    /**
+     * resume( ) wakes up a suspended agent.
+     *
+     * @param agentId the identifier of the agent to resume.
+     * @return true if a suspended agent was found, otherwise false.
+     */
+    public boolean resume( int agentId ) {
+        for ( Account account : accounts.values( ) ) {
+            if ( account.agent.getId( ) != agentId || !account.suspended )
+                continue;
+            synchronized ( account ) {
+                if ( !account.suspended )
+                    return false;    // the deadline has just passed
+                rebase( account );
+                account.flaggedAt = 0;
+                account.agent.setQuotaExceeded( null );
+                account.suspended = false;
+                account.notifyAll( );
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * shutdown( ) stops sampling.
+     */
+    public void shutdown( ) {
+        sampler.shutdownNow( );
+    }
+
+    /**
+     * sample( ) checks every running agent against its quota.
+     */
+    private void sample( ) {
+        long now = System.currentTimeMillis( );
+        for ( Account account : accounts.values( ) ) {
+            AgentQuota quota = quotas.get( account.classname );
+            if ( quota == null || account.suspended || account.forced )
+                continue;
+            if ( account.flaggedAt == 0 ) {
+                String limit = quota.exceeded( cpu( account ),
+                                               alloc( account ),
+                                               now - account.wallBase );
+                if ( limit == null )
+                    continue;
+                // ask the agent to comply at its next checkQuota( )
+                account.flaggedAt = now;
+                account.agent.setQuotaExceeded( quota );
+                stats.increment( "quota.exceeded." + limit );
+                System.err.println( "agent( " + account.agent.getId( ) +
+                                    ") exceeded its " + limit + " quota: " +
+                                    quota.getAction( ) );
+            } else if ( now - account.flaggedAt > GRACE_MILLIS ) {
+                // the agent ignored the request
+                account.forced = true;
+                stats.increment( "quota.forced" );
+                System.err.println( "agent( " + account.agent.getId( ) +
+                                    ") did not comply, stopping it" );
+                stop( account.thread );
+            }
+        }
+    }
+
+    /**
+     * stop( ) kills an agent thread the same way Agent.hop( ) does.
+     */
+    @SuppressWarnings( "deprecation" )
+    private static void stop( Thread thread ) {
+        thread.stop( );
+    }
+
+    /**
+     * rebase( ) lets an account count its usage from now on.
+     */
+    private void rebase( Account account ) {
+        account.cpuBase = threadCpu( account.thread );
+        account.allocBase = threadAlloc( account.thread );
+        account.wallBase = System.currentTimeMillis( );
+        account.chargedCpu.set( 0 );
+        account.chargedAlloc.set( 0 );
+        for ( Work work : account.work ) {
+            work.cpuBase = threadCpu( work.thread );
+            work.allocBase = threadAlloc( work.thread );
+        }
+    }
+
+    private long cpu( Account account ) {
+        long cpu = threadCpu( account.thread ) - account.cpuBase
+            + account.chargedCpu.get( );
+        for ( Work work : account.work )
+            cpu += threadCpu( work.thread ) - work.cpuBase;
+        return cpu;
+    }
+
+    private long alloc( Account account ) {
+        long alloc = threadAlloc( account.thread ) - account.allocBase
+            + account.chargedAlloc.get( );
+        for ( Work work : account.work )
+            alloc += threadAlloc( work.thread ) - work.allocBase;
+        return alloc;
+    }
+
+    /**
+     * threadCpu( ) returns the CPU time of a thread, or 0 if unavailable.
+     */
+    private long threadCpu( Thread thread ) {
+        long time = threads.isThreadCpuTimeSupported( ) ?
+            threads.getThreadCpuTime( thread.getId( ) ) : -1;
+        return ( time < 0 ) ? 0 : time;
+    }
+
+    /**
+     * threadAlloc( ) returns the bytes allocated by a thread, or 0 if
+     * unavailable.
+     */
+    private long threadAlloc( Thread thread ) {
+        if ( !allocSupported )
+            return 0;
+        long bytes = ( ( com.sun.management.ThreadMXBean )threads )
+            .getThreadAllocatedBytes( thread.getId( ) );
+        return ( bytes < 0 ) ? 0 : bytes;
+    }
+}
@@ -0,0 +1,177 @@
+package Mobile;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Mobile.SpanLog records the spans of agent traces on a Mobile.Place, such
+ * as receive, class-define, deserialize, dispatch, run, and send, into a
+ * lock-free ring buffer that keeps the most recent spans. The buffer can be
+ * queried per trace or dumped to a file, one span per line.
+ *
+ * The capacity defaults to 8192 spans and can be set with the system
+ * property "Mobile.trace.capacity". If "Mobile.trace.dump" names a file, the
+ * buffer is dumped there when the Place's JVM exits; a Place started on a
+ * port dumps to that name followed by ".<port>".
+ */
+public class SpanLog {
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    private final AtomicReferenceArray<Span> ring; // the recorded spans
+    private final int mask;                         // capacity - 1
+    private final AtomicLong cursor = new AtomicLong( ); // the next slot
+    // to convert System.nanoTime( ) into microseconds since the epoch
+    private final long baseNanos = System.nanoTime( );
+    private final long baseMicros = System.currentTimeMillis( ) * 1000;
+
+    /**
+     * A Span is one timed step of an agent on this Place.
+     */
+    public static class Span implements Serializable {
+        public final long traceId;
+        public final long spanId;
+        public final long parentId;
+        public final String name;
+        public final int agentId;
+        public final long startMicros;    // since the epoch
+        public final long durationNanos;
+
+        Span( long traceId, long spanId, long parentId, String name,
+              int agentId, long startMicros, long durationNanos ) {
+            this.traceId = traceId;
+            this.spanId = spanId;
+            this.parentId = parentId;
+            this.name = name;
+            this.agentId = agentId;
+            this.startMicros = startMicros;
+            this.durationNanos = durationNanos;
+        }
+
+        /**
+         * toString( ) formats this span as tab-separated trace, span, and
+         * parent identifiers in hex, name, agent, start, and duration.
+         */
+        public String toString( ) {
+            return Long.toHexString( traceId ) + "\t" +
+                Long.toHexString( spanId ) + "\t" +
+                Long.toHexString( parentId ) + "\t" + name + "\t" +
+                agentId + "\t" + startMicros + "\t" + durationNanos;
+        }
+    }
+
+    /**
+     * This constructor creates a span log of the capacity given in the
+     * "Mobile.trace.capacity" property, rounded up to a power of two.
+     */
+    public SpanLog( ) {
+        this( ( System.getProperty( "Mobile.trace.dump" ) == null ) ? null :
+              new File( System.getProperty( "Mobile.trace.dump" ) ) );
+    }
+
+    /**
+     * This constructor creates a span log of the capacity given in the
+     * "Mobile.trace.capacity" property, which is dumped to a given file
+     * when the JVM exits.
+     *
+     * @param dump the file to dump the spans to, or null.
+     */
+    public SpanLog( final File dump ) {
+        this( Integer.getInteger( "Mobile.trace.capacity", DEFAULT_CAPACITY ) );
+
+        if ( dump != null )
+            Runtime.getRuntime( ).addShutdownHook( new Thread( ) {
+                    public void run( ) {
+                        try {
+                            dump( dump );
+                        } catch ( IOException e ) {
+                            e.printStackTrace( );
+                        }
+                    }
+                } );
+    }
+
+    /**
+     * This constructor creates a span log that keeps a given number of the
+     * most recent spans, rounded up to a power of two.
+     *
+     * @param capacity the number of spans to keep.
+     */
+    public SpanLog( int capacity ) {
+        int size = Integer.highestOneBit( Math.max( capacity, 2 ) - 1 ) << 1;
+        ring = new AtomicReferenceArray<Span>( size );
+        mask = size - 1;
+    }
+
+    /**
+     * newId( ) returns a random non-zero trace or span identifier.
+     */
+    public static long newId( ) {
+        long id;
+        do {
+            id = ThreadLocalRandom.current( ).nextLong( );
+        } while ( id == 0 );
+        return id;
+    }
+
+    /**
+     * record( ) records a span, overwriting the oldest one if the buffer is
+     * full.
+     *
+     * @param traceId    the trace identifier.
+     * @param spanId     this span's identifier.
+     * @param parentId   the parent span identifier.
+     * @param name       the step name.
+     * @param agentId    the agent identifier.
+     * @param startNanos the System.nanoTime( ) when the step started.
+     * @param endNanos   the System.nanoTime( ) when the step ended.
+     */
+    public void record( long traceId, long spanId, long parentId, String name,
+                        int agentId, long startNanos, long endNanos ) {
+        long startMicros = baseMicros + ( startNanos - baseNanos ) / 1000;
+        Span span = new Span( traceId, spanId, parentId, name, agentId,
+                              startMicros, endNanos - startNanos );
+        ring.set( ( int )( cursor.getAndIncrement( ) & mask ), span );
+    }
+
+    /**
+     * query( ) returns the recorded spans of a given trace, oldest first.
+     *
+     * @param traceId the trace identifier, or 0 for all traces.
+     * @return the spans in start order.
+     */
+    public List<Span> query( long traceId ) {
+        List<Span> spans = new ArrayList<Span>( );
+        for ( int i = 0; i <= mask; i++ ) {
+            Span span = ring.get( i );
+            if ( span != null && ( traceId == 0 || span.traceId == traceId ) )
+                spans.add( span );
+        }
+        Collections.sort( spans, new Comparator<Span>( ) {
+                public int compare( Span a, Span b ) {
+                    return Long.compare( a.startMicros, b.startMicros );
+                }
+            } );
+        return spans;
+    }
+
+    /**
+     * dump( ) writes all recorded spans to a file, oldest first.
+     *
+     * @param file the file to write.
+     */
+    public void dump( File file ) throws IOException {
+        PrintWriter out = new PrintWriter( new BufferedWriter(
+            new FileWriter( file ) ) );
+        try {
+            out.println( "# trace\tspan\tparent\tname\tagent\tstartMicros" +
+                         "\tdurationNanos" );
+            for ( Span span : query( 0 ) )
+                out.println( span );
+        } finally {
+            out.close( );
+        }
+    }
+}
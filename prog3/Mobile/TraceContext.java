@@ -0,0 +1,48 @@
+package Mobile;
+
+import java.io.Serializable;
+
+/**
+ * Mobile.TraceContext identifies the trace an agent belongs to and the span
+ * that caused its next arrival, (i.e., the send span of its last hop). An
+ * agent carries its context along its migrations so that the spans recorded
+ * by every Mobile.Place it visits can be put together into one path.
+ */
+public class TraceContext implements Serializable {
+    private final long traceId;       // shared by all spans of an agent
+    private final long parentSpanId;  // the span to attach new spans to
+
+    /**
+     * This constructor creates a context.
+     *
+     * @param traceId      the trace identifier.
+     * @param parentSpanId the parent span identifier, or 0 for a root.
+     */
+    public TraceContext( long traceId, long parentSpanId ) {
+        this.traceId = traceId;
+        this.parentSpanId = parentSpanId;
+    }
+
+    /**
+     * child( ) returns a context of the same trace under a given span.
+     *
+     * @param spanId the new parent span.
+     * @return the child context.
+     */
+    public TraceContext child( long spanId ) {
+        return new TraceContext( traceId, spanId );
+    }
+
+    public long getTraceId( ) {
+        return traceId;
+    }
+
+    public long getParentSpanId( ) {
+        return parentSpanId;
+    }
+
+    public String toString( ) {
+        return Long.toHexString( traceId ) + "/" +
+            Long.toHexString( parentSpanId );
+    }
+}
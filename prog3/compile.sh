@@ -1,6 +1,8 @@
 #!/bin/sh
 
 javac Mobile/*.java
-rmic Mobile.Place
+# Place is exported with a dynamic stub; a stale rmic stub would hide new
+# remote methods
+rm -f Mobile/Place_Stub.class
 jar cvf Mobile.jar Mobile/*.class
 javac -cp Mobile.jar:. *.java
\ No newline at end of file
@@ -0,0 +1,4 @@
+#!/bin/sh
+# $1 = benchmark (scan or startup) followed by its parameters
+
+java -cp Mobile.jar Mobile.Benchmark "$@"
@@ -0,0 +1,4 @@
+#!/bin/sh
+# options: -places K -process -port base -rate bursts/s (fanout agents each) -duration s -interval s -mix profiles
+
+java -cp Mobile.jar Mobile.LoadHarness "$@"